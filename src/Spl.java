@@ -1,19 +1,29 @@
 import interpreter.Interpreter;
+import parser.AotCompiler;
+import parser.AstCache;
 import parser.BlockStmt;
-import parser.Node;
+import parser.ClosureCompiler;
+import parser.ConstantFolder;
+import parser.JitCompiler;
 import parser.ParseException;
 import parser.Parser;
+import parser.Program;
+import parser.Specializer;
 import tokenizer.LexerException;
-import tokenizer.TokenLib;
+import tokenizer.SymbolTable;
 import tokenizer.Tokenizer;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 public class Spl {
 
@@ -21,6 +31,41 @@ public class Spl {
 
     private static ArrayList<String> splArgs;
 
+    private static boolean printTokens;
+
+    private static Charset charset = StandardCharsets.UTF_8;
+
+    private static boolean useCache;
+
+    private static Path cacheDir;
+
+    private static String engine = "tree";
+
+    private static boolean lazy;
+
+    private static boolean parallel;
+
+    private static boolean fold = true;
+
+    private static boolean closures;
+
+    private static boolean specialize;
+
+    private static boolean jit;
+
+    private static int jitThreshold = 100;
+
+    private static boolean tier;
+
+    private static int tierThreshold = 10;
+
+    /**
+     * Jar to compile the script into instead of running it.
+     */
+    private static Path aotJar;
+
+    private static boolean dumpFolds;
+
     private static void parseArgs(String[] args) {
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
@@ -28,7 +73,67 @@ public class Spl {
                 splArgs.add(arg);
             } else {
                 if (arg.charAt(0) == '-') {
-
+                    switch (arg) {
+                        case "-t":
+                        case "--tokens":
+                            printTokens = true;
+                            break;
+                        case "--cache":
+                            useCache = true;
+                            break;
+                        case "--lazy":
+                            lazy = true;
+                            break;
+                        case "--parallel":
+                            parallel = true;
+                            break;
+                        case "--closures":
+                            closures = true;
+                            break;
+                        case "--specialize":
+                            specialize = true;
+                            break;
+                        case "--jit":
+                            jit = true;
+                            break;
+                        case "--tier":
+                            tier = true;
+                            break;
+                        case "--no-fold":
+                            fold = false;
+                            break;
+                        case "--dump-folds":
+                            dumpFolds = true;
+                            break;
+                        default:
+                            if (arg.startsWith("--charset=")) {
+                                String name = arg.substring("--charset=".length());
+                                try {
+                                    charset = Charset.forName(name);
+                                } catch (IllegalArgumentException e) {
+                                    System.err.println("Unknown charset '" + name + "'");
+                                    System.exit(1);
+                                }
+                            } else if (arg.startsWith("--cache-dir=")) {
+                                useCache = true;
+                                cacheDir = Paths.get(arg.substring("--cache-dir=".length()));
+                            } else if (arg.startsWith("--engine=")) {
+                                engine = arg.substring("--engine=".length());
+                                if (!engine.equals("tree") && !engine.equals("flat") && !engine.equals("vm")) {
+                                    System.err.println("Unknown engine '" + engine + "', expected tree|flat|vm");
+                                    System.exit(1);
+                                }
+                            } else if (arg.startsWith("--aot=")) {
+                                aotJar = Paths.get(arg.substring("--aot=".length()));
+                            } else if (arg.startsWith("--tier-threshold=")) {
+                                tier = true;
+                                tierThreshold = threshold("--tier-threshold", arg.substring("--tier-threshold=".length()));
+                            } else if (arg.startsWith("--jit-threshold=")) {
+                                jit = true;
+                                jitThreshold = threshold("--jit-threshold", arg.substring("--jit-threshold=".length()));
+                            }
+                            break;
+                    }
                 } else if (arg.toLowerCase().equals("help")) {
 
                     System.exit(0);
@@ -42,6 +147,23 @@ public class Spl {
         }
     }
 
+    /**
+     * Parses the count of a threshold option, which must be a positive number.
+     */
+    private static int threshold(String option, String value) {
+        int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            count = 0;
+        }
+        if (count <= 0) {
+            System.err.println("Invalid " + option + " '" + value + "', expected a positive number");
+            System.exit(1);
+        }
+        return count;
+    }
+
     private static String getDir(String file) {
         File f = new File(file);
         return f.getParent();
@@ -56,30 +178,73 @@ public class Spl {
     private static void executeSpl() {
 
         try {
-            TokenLib.init();
-
-            BufferedReader br = new BufferedReader(new FileReader(fileName));
-
-            Tokenizer tokenizer = new Tokenizer();
-            tokenizer.setFileName(fileName);
-            tokenizer.tokenize(br);
+            Path path = Paths.get(fileName);
+            SymbolTable symbolTable = new SymbolTable();
+            boolean closureMode = closures && aotJar == null;
+            AstCache cache = useCache ? AstCache.forSource(path, cacheDir, charset, closureMode) : null;
+            BlockStmt ast = cache == null || printTokens ? null : cache.load(symbolTable);
+
+            if (ast == null) {
+                Tokenizer tokenizer = new Tokenizer();
+                tokenizer.setFileName(fileName);
+                tokenizer.setSymbolTable(symbolTable);
+                tokenizer.load(path, charset);
+
+                if (printTokens) tokenizer.printTokens();
+
+                Parser parser = new Parser(tokenizer);
+                parser.setLazy(lazy && aotJar == null);
+                parser.setClosures(closureMode);
+                if (parallel) parser.setPool(ForkJoinPool.commonPool());
+                ast = parser.parse();
+                if (cache != null) cache.store(ast, symbolTable);
+            }
+            if (fold) {
+                ConstantFolder folder = new ConstantFolder();
+                folder.fold(ast);
+                if (dumpFolds) {
+                    for (String f : folder.getFolds()) System.out.println(f);
+                }
+            }
 
-            tokenizer.printTokens();
+            if (aotJar != null) {
+                AotCompiler.compile(ast, fileName, aotJar);
+                System.out.println("Compiled to " + aotJar);
+                return;
+            }
 
-            Parser parser = new Parser(tokenizer);
+            Program program;
+            switch (engine) {
+                case "flat":
+                    program = Program.flat(ast);
+                    break;
+                case "vm":
+                    program = Program.vm(ast);
+                    break;
+                default:
+                    if (specialize) new Specializer().specialize(ast);
+                    if (tier) new ClosureCompiler(tierThreshold).prepare(ast);
+                    if (jit) new JitCompiler(jitThreshold).prepare(ast);
+                    program = Program.of(ast);
+                    break;
+            }
+            ast = null;  // only the program keeps what it runs
 
-            BlockStmt ast = parser.parse();
             System.out.println("========== Abstract Syntax Tree ==========");
-            System.out.println(ast);
+            System.out.println(program);
             System.out.println("========== End of Abstract Syntax Tree ==========");
 
             Interpreter interpreter = new Interpreter();
-            Object result = interpreter.interpret(ast);
+            Object result = interpreter.interpret(program);
 
             System.out.println(result);
 
+        } catch (NoSuchFileException e) {
+            System.err.println("File not found: " + e.getFile());
+            System.exit(1);
         } catch (IOException e) {
-            //
+            System.err.println(e.getMessage());
+            System.exit(1);
         } catch (LexerException e) {
             e.printStackTrace();
         } catch (ParseException e) {
@@ -0,0 +1,13 @@
+package interpreter;
+
+/**
+ * A box holding a variable that is captured by a function, shared between its frame and the closures.
+ */
+public class Cell {
+
+    public Object value;
+
+    public Cell(final Object value) {
+        this.value = value;
+    }
+}
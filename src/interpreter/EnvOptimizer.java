@@ -1,12 +1,20 @@
 package interpreter;
 
 import parser.Parser;
+import util.IntMap;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class EnvOptimizer {
 
-    private static int envCounter = 0;
+    /**
+     * Shared by the optimizers of one program, whose function bodies may be looked up in parallel.
+     */
+    private final AtomicInteger envCounter;
 
     private int envId;
 
@@ -16,57 +24,326 @@ public class EnvOptimizer {
 
     private int variableCounter;
 
-    private HashMap<String, Integer> varMap = new HashMap<>();
+    private IntMap varMap = new IntMap();
 
-    private HashMap<String, Integer> constMap = new HashMap<>();
+    private IntMap constMap = new IntMap();
 
     private EnvOptimizer outer;
 
+    /**
+     * The optimizer of the function or global scope that owns the slots of this scope. Block scopes only keep
+     * their own names, so no environment is created for them at run time.
+     */
+    private EnvOptimizer frame;
+
+    /**
+     * The first frame slot of this scope. A block scope gives its slots back to the frame when it ends, so
+     * blocks whose variables are never live at the same time share slots.
+     */
+    private int base;
+
+    /**
+     * Whether the variables of this block scope get slots of their own, see {@link #keepSlots}.
+     */
+    private boolean keepSlots;
+
+    // the fields below are only used by frame optimizers
+
+    private int maxVariables;
+
+    /**
+     * Slots that nested functions may read after their block has ended, which are never given back.
+     */
+    private BitSet pinned;
+
+    /**
+     * Slot ranges given back by the blocks of this frame, trimmed by {@link #trimReleased}.
+     */
+    private ArrayList<int[]> released;
+
+    /**
+     * Whether names of enclosing functions are captured into cells instead of being reached through the
+     * chain of environments.
+     */
+    private boolean closures;
+
+    // the fields below are only used by frame optimizers in closure mode
+
+    private ArrayList<Variable> issued;
+
+    private BitSet cells;
+
+    private int[] captures;
+
+    private int captureCount;
+
+    /**
+     * Global names used from functions, by symbol, only kept by the global optimizer. They are bound to the
+     * slot of the definition of their name visible where they are looked up, or else to the first top level
+     * definition after it. A later definition of the name does not move uses already bound.
+     */
+    private HashMap<Integer, ArrayList<HeapVariable>> globalNames;
+
+    /**
+     * Slots of the top level definitions of each name, by symbol, in order, only kept by the global optimizer.
+     * Bodies looked up late, lazily or in parallel, find the definitions their function saw through it.
+     */
+    private HashMap<Integer, ArrayList<int[]>> globalDefinitions;
+
+    /**
+     * Number of top level definitions made so far, kept by the global optimizer.
+     */
+    private int globalDefinitionCount;
+
+    /**
+     * The number of top level definitions made before the function of this frame was defined.
+     */
+    private int globalSeen;
+
     public EnvOptimizer(final int type, final EnvOptimizer outer) {
-        envId = envCounter++;
+        envCounter = outer == null ? new AtomicInteger() : outer.envCounter;
+        envId = envCounter.getAndIncrement();
         this.outer = outer;
         this.scopeType = type;
+        boolean block = type == Environment.SUB_SCOPE || type == Environment.LOOP_SCOPE;
+        frame = block && outer != null ? outer.frame : this;
+        base = frame.variableCounter;
+        if (frame == this) {
+            pinned = new BitSet();
+            released = new ArrayList<>();
+        }
+        if (frame == this && outer != null) {
+            EnvOptimizer outerFrame = outer.frame;
+            globalSeen = outerFrame.outer == null ? outerFrame.globalDefinitionCount : outerFrame.globalSeen;
+        }
+        if (outer != null) {
+            setClosures(outer.closures);
+        } else {
+            globalNames = new HashMap<>();
+            globalDefinitions = new HashMap<>();
+        }
     }
 
-    public Variable addVar(final String name) {
-        int temp = variableCounter;
-        varMap.put(name, variableCounter++);
-        return new Variable(temp, 0, Parser.VAR);
+    /**
+     * Turns on closure conversion for this scope and the scopes created inside it.
+     */
+    public void setClosures(final boolean closures) {
+        this.closures = closures;
+        if (closures && frame == this) {
+            issued = new ArrayList<>();
+            cells = new BitSet();
+            captures = new int[4];
+        }
     }
 
-    public void addConst(final String name) {
-        constMap.put(name, constCounter++);
+    /**
+     * Gives the variables of this block scope slots no other variable of the frame uses, and never gives them
+     * back. Blocks defining functions need this: a function may read their variables after the block ends,
+     * while an enclosing loop runs again the blocks that would otherwise share the slots.
+     */
+    public void keepSlots() {
+        keepSlots = true;
     }
 
-    public Variable get(final String name) {
-        return innerGet(name, 0);
+    public Variable addVar(final int symbol) {
+        if (keepSlots) frame.variableCounter = Math.max(frame.variableCounter, frame.maxVariables);
+        int temp = frame.variableCounter++;
+        if (frame.variableCounter > frame.maxVariables) frame.maxVariables = frame.variableCounter;
+        if (keepSlots) frame.pin(temp);
+        varMap.put(symbol, temp);
+        if (globalNames != null) {
+            globalDefinitions.computeIfAbsent(symbol, k -> new ArrayList<>())
+                    .add(new int[]{globalDefinitionCount++, temp});
+            bindGlobal(symbol, temp);
+        }
+        return frame.issue(temp, Parser.VAR);
     }
 
-    private Variable innerGet(final String name, int depth) {
-        Integer rep = varMap.get(name);
-        if (rep != null) {
-            return new Variable(rep, depth, Parser.ASSIGN);
+    public void addConst(final int symbol) {
+        constMap.put(symbol, frame.constCounter++);
+    }
+
+    /**
+     * Resolves <code>symbol</code> through the enclosing scopes. The <code>name</code> is only kept for
+     * error messages of unresolved names.
+     */
+    public Variable get(final int symbol, final String name) {
+        return closures ? resolve(symbol, name) : innerGet(symbol, name, 0, frame.globalSeen);
+    }
+
+    /**
+     * Looks <code>symbol</code> up in the scopes of this frame, then captures it from the enclosing frames.
+     */
+    private Variable resolve(final int symbol, final String name) {
+        for (EnvOptimizer scope = this; ; scope = scope.outer) {
+            int rep = scope.varMap.get(symbol);
+            if (rep == IntMap.NOT_FOUND) rep = scope.constMap.get(symbol);
+            if (rep != IntMap.NOT_FOUND) return frame.issue(rep, Parser.ASSIGN);
+            if (scope == frame) break;
+        }
+        if (frame.outer == null) return frame.globalName(symbol, name, IntMap.NOT_FOUND, 0);
+
+        Variable outerVar = frame.outer.resolve(symbol, name);
+        if (outerVar instanceof HeapVariable) return outerVar;
+        if (frame.outer.frame.outer == null) return frame.outer.frame.globalName(symbol, name, outerVar.index, frame.globalSeen);
+        int source;
+        if (outerVar.kind == Variable.CAPTURED) {
+            source = -outerVar.index - 1;
+        } else {
+            frame.outer.frame.makeCell(outerVar.index);
+            source = outerVar.index;
+        }
+        Variable variable = new Variable(frame.capture(source), 0, Parser.ASSIGN);
+        variable.kind = Variable.CAPTURED;
+        return variable;
+    }
+
+    private Variable issue(final int slot, final int type) {
+        Variable variable = new Variable(slot, 0, type);
+        if (closures) {
+            if (cells.get(slot)) variable.kind = Variable.CELL;
+            issued.add(variable);
+        }
+        return variable;
+    }
+
+    /**
+     * Moves a slot into a cell, including for the variables already resolved to it.
+     */
+    private void makeCell(final int slot) {
+        if (cells.get(slot)) return;
+        cells.set(slot);
+        pin(slot);
+        for (Variable variable : issued) {
+            if (variable.index == slot) variable.kind = Variable.CELL;
+        }
+    }
+
+    private int capture(final int source) {
+        for (int i = 0; i < captureCount; i++) {
+            if (captures[i] == source) return i;
         }
-        rep = constMap.get(name);
-        if (rep != null) {
+        if (captureCount == captures.length) captures = Arrays.copyOf(captures, captureCount * 2);
+        captures[captureCount] = source;
+        return captureCount++;
+    }
+
+    private Variable innerGet(final int symbol, final String name, int depth, final int seen) {
+        int rep = varMap.get(symbol);
+        if (rep == IntMap.NOT_FOUND) rep = constMap.get(symbol);
+        if (rep != IntMap.NOT_FOUND) {
+            if (depth > 0) {
+                if (frame.outer == null) return frame.globalName(symbol, name, rep, seen);
+                frame.pin(rep);
+            }
             return new Variable(rep, depth, Parser.ASSIGN);
         }
         if (outer != null) {
-            return outer.innerGet(name, depth + 1);
+            return outer.innerGet(symbol, name, frame == this ? depth + 1 : depth, seen);
         } else {
-            return new HeapVariable(name);
+            return globalName(symbol, name, IntMap.NOT_FOUND, seen);
+        }
+    }
+
+    /**
+     * Creates a use of a global name, bound to <code>slot</code> if it is already known. Unbound uses are
+     * kept until a top level definition of the name links them. A body looked up after later definitions of
+     * the name is bound as if it had been looked up when its function was defined, after <code>seen</code>
+     * top level definitions.
+     * <p>
+     * Function bodies may be looked up in parallel, so the global optimizer is locked.
+     */
+    private synchronized HeapVariable globalName(final int symbol, final String name, int slot, final int seen) {
+        HeapVariable variable = new HeapVariable(symbol, name);
+        if (slot != IntMap.NOT_FOUND) {
+            slot = definitionSeen(symbol, seen, slot);
+            variable.bind(slot);
+            pin(slot);
+        }
+        globalNames.computeIfAbsent(symbol, k -> new ArrayList<>()).add(variable);
+        return variable;
+    }
+
+    /**
+     * Returns the slot of the last definition of <code>symbol</code> among the first <code>seen</code> top level
+     * definitions, or of its first definition after them, as {@link #bindGlobal} would have linked it.
+     */
+    private int definitionSeen(final int symbol, final int seen, final int latest) {
+        ArrayList<int[]> definitions = globalDefinitions.get(symbol);
+        if (definitions == null) return latest;  // a constant
+        int slot = definitions.get(0)[1];
+        for (int[] definition : definitions) {
+            if (definition[0] >= seen) break;
+            slot = definition[1];
+        }
+        return slot;
+    }
+
+    private synchronized void bindGlobal(final int symbol, final int slot) {
+        ArrayList<HeapVariable> uses = globalNames.get(symbol);
+        if (uses != null) {
+            for (HeapVariable variable : uses) {
+                if (variable.kind != Variable.GLOBAL) variable.bind(slot);
+            }
+        }
+    }
+
+    private synchronized void pin(final int slot) {
+        pinned.set(slot);
+    }
+
+    /**
+     * Keeps every slot visible from this scope, for function bodies that are looked up after the enclosing
+     * blocks have ended.
+     */
+    public void pinVisible() {
+        for (EnvOptimizer scope = this; scope != null; scope = scope.frame.outer) {
+            EnvOptimizer owner = scope.frame;
+            synchronized (owner) {
+                owner.pinned.set(0, owner.variableCounter);
+            }
+        }
+    }
+
+    /**
+     * Ends this block scope and gives its slots back to the frame, except those up to the last pinned one.
+     * Returns the slots given back as <code>{from, to}</code>, dead once the scope ends, or <code>null</code>.
+     * <p>
+     * A later sibling block may reuse a slot of the range and pin it for a nested function, so the range is
+     * only final once {@link #trimReleased} has run for the frame.
+     */
+    public int[] release() {
+        int top = frame.variableCounter;
+        int kept = frame.pinned.previousSetBit(top - 1) + 1;
+        frame.variableCounter = Math.max(base, kept);
+        if (frame.variableCounter >= top) return null;
+        int[] range = {frame.variableCounter, top};
+        frame.released.add(range);
+        return range;
+    }
+
+    /**
+     * Ends the look up of this frame: takes the pinned slots out of the ranges its blocks gave back, by
+     * raising the start of each range past its last pinned slot. A range may become empty.
+     */
+    public synchronized void trimReleased() {
+        for (int[] range : released) {
+            range[0] = Math.max(range[0], pinned.previousSetBit(range[1] - 1) + 1);
         }
+        released.clear();
     }
 
     public int getConstCounter() {
-        return constCounter;
+        return frame.constCounter;
     }
 
     public int getVariableCounter() {
-        return variableCounter;
+        return frame.variableCounter;
     }
 
     public VariableCount getVariableCount() {
-        return new VariableCount(variableCounter, constCounter);
+        if (!closures) return new VariableCount(frame.maxVariables, frame.constCounter);
+        return new VariableCount(frame.maxVariables, frame.constCounter,
+                Arrays.copyOf(frame.captures, frame.captureCount));
     }
 }
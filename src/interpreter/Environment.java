@@ -6,7 +6,6 @@ import tokenizer.Position;
 import util.Utility;
 
 import java.util.Arrays;
-import java.util.HashMap;
 
 public class Environment {
 
@@ -24,13 +23,21 @@ public class Environment {
 
     public final static NullPointer NULL_POINTER = new NullPointer();
 
+    /**
+     * Stands in a slot of <code>variables</code> whose value is kept unboxed in <code>longs</code>.
+     */
+    private final static Object LONG_SLOT = new Object();
+
 //    private final static int[] LOCAL_SCOPES = {LOOP_SCOPE, LOOP_INNER_SCOPE, IF_ELSE_SCOPE, TRY_CATCH_SCOPE};
 
     private Environment outer;
 
     private int scopeType;
 
-    private HashMap<String, Object> heap;
+    /**
+     * Slots of the global frame, shared by all environments of one execution.
+     */
+    private Object[] globals;
 
 //    private HashMap<String, Object> variables;
 //
@@ -38,40 +45,109 @@ public class Environment {
 
     private Object[] variables;
 
+    /**
+     * Unboxed int values, allocated when the first one is stored.
+     */
+    private long[] longs;
+
     private Object[] constants;
 
+    /**
+     * Cells of the running function in closure mode, see {@link Variable#CAPTURED}.
+     */
+    private Cell[] captures;
+
 //    private HashMap<String, Object> locals;
 
     public boolean broken, paused, terminated;
 
     private Object returnValue;
 
-    private static int environmentCounter = 0;
+    /**
+     * The global environment of the run, which holds the counters of that run.
+     */
+    private Environment global;
+
+    private int environmentCounter;
 
     private int environmentId;
 
     public Environment(final int scopeType, final Environment outer, final VariableCount variableCount) {
         this.scopeType = scopeType;
         this.outer = outer;
-        environmentId = environmentCounter++;
-        if (outer == null) {
-            heap = new HashMap<>();
-        } else {
-            heap = outer.heap;
-        }
+        global = outer == null ? this : outer.global;
+        environmentId = global.environmentCounter++;
 
         variables = new Object[variableCount.getVarCount()];
         constants = new Object[variableCount.getConstCount()];
+        if (outer == null) {
+            globals = variables;
+        } else {
+            globals = outer.globals;
+        }
 //        locals = new HashMap<>();
 
     }
 
+    /**
+     * Creates the frame of a converted closure. It shares the globals of this environment but has no outer
+     * environment, so frames that no closure captured can be collected as soon as they return.
+     */
+    public Environment newFrame(final VariableCount variableCount, final Cell[] captures) {
+        Environment frame = new Environment(FUNCTION_SCOPE, null, variableCount);
+        frame.global = global;
+        frame.globals = globals;
+        frame.environmentId = global.environmentCounter++;
+        frame.captures = captures;
+        return frame;
+    }
+
+    /**
+     * Collects the cells a closure captures, as described by {@link VariableCount#getCaptures()}.
+     */
+    public Cell[] capture(final int[] sources) {
+        Cell[] cells = new Cell[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            int source = sources[i];
+            cells[i] = source >= 0 ? cellAt(source) : captures[-source - 1];
+        }
+        return cells;
+    }
+
+    /**
+     * The slots of this frame, which engines may address directly as registers.
+     */
+    public Object[] getSlots() {
+        return variables;
+    }
+
+    /**
+     * Reads a slot of this frame, unboxed or not.
+     */
+    public Object getSlot(final int index) {
+        Object value = variables[index];
+        return value == LONG_SLOT ? (Object) longs[index] : value;
+    }
+
+    private Cell cellAt(final int index) {
+        Object value = variables[index];
+        if (value instanceof Cell) return (Cell) value;
+        if (value == LONG_SLOT) value = longs[index];
+        Cell cell = new Cell(value);
+        variables[index] = cell;
+        return cell;
+    }
+
 //    public void defineFunction(final Variable variable, Object value, Position pos) {
 //
 //    }
 
     public void defineVar(final Variable variable, Object value, Position pos) {
-        variables[variable.index] = value;
+        if (variable.kind == Variable.CELL) {
+            cellAt(variable.index).value = value;
+        } else {
+            variables[variable.index] = value;
+        }
     }
 
 //    public void defineVar(final String name, Object value, Position pos) {
@@ -83,28 +159,27 @@ public class Environment {
 //        variables.put(name, value);
 //    }
 
+    /**
+     * Loops run in the frame of their function, so the loop flags live on the frame and the innermost running
+     * loop clears them.
+     */
     public void pause() {
-        if (scopeType == LOOP_SCOPE) {
-            paused = true;
-        } else {
-            outer.pause();
-        }
+        paused = true;
     }
 
     public void resume() {
-        if (scopeType == LOOP_SCOPE) {
-            paused = false;
-        } else {
-            outer.resume();
-        }
+        paused = false;
     }
 
     public void breakLoop() {
-        if (scopeType == LOOP_SCOPE) {
-            broken = true;
-        } else {
-            outer.breakLoop();
-        }
+        broken = true;
+    }
+
+    /**
+     * Clears slots whose variables are out of scope, so they do not keep their last values reachable.
+     */
+    public void clearSlots(final int from, final int to) {
+        Arrays.fill(variables, from, to, null);
     }
 
     public void terminate(Object returnValue) {
@@ -135,6 +210,18 @@ public class Environment {
 //    }
 
     public void assign(final Variable variable, Object value, Position pos) {
+        if (variable.kind == Variable.GLOBAL) {
+            globals[variable.index] = value;
+            return;
+        } else if (variable.scopeDistance == -1) {
+            throw notDefined((HeapVariable) variable, pos);
+        } else if (variable.kind == Variable.CELL) {
+            cellAt(variable.index).value = value;
+            return;
+        } else if (variable.kind == Variable.CAPTURED) {
+            captures[variable.index].value = value;
+            return;
+        }
         Environment env = this;
         for (int i = 0; i < variable.scopeDistance; i++) {
             env = env.outer;
@@ -182,24 +269,74 @@ public class Environment {
             throw new NullPointerException("at line " + pos.getLineNumber());
         }
         if (variable.scopeDistance == -1) {
-            // global variable
-            String name = ((HeapVariable) variable).name;
-            Object res = heap.get(name);
-            if (res == null) {
-                throw new SplException(String.format("Name '%s' is not defined, in '%s', at line %d",
-                        name, pos.getFileName(), pos.getLineNumber()));
-            } else {
-                return res;
-            }
+            throw notDefined((HeapVariable) variable, pos);
+        } else if (variable.kind == Variable.GLOBAL) {
+            Object res = globals[variable.index];
+            if (res == null) throw notDefined((HeapVariable) variable, pos);
+            return res == LONG_SLOT ? (Object) global.longs[variable.index] : res;
+        } else if (variable.kind == Variable.CELL) {
+            Object value = variables[variable.index];
+            return value instanceof Cell ? ((Cell) value).value : value;
+        } else if (variable.kind == Variable.CAPTURED) {
+            return captures[variable.index].value;
         } else {
             Environment env = this;
             for (int i = 0; i < variable.scopeDistance; i++) {
                 env = env.outer;
             }
-            return env.variables[variable.index];
+            Object value = env.variables[variable.index];
+            return value == LONG_SLOT ? (Object) env.longs[variable.index] : value;
         }
     }
 
+    /**
+     * Reads a variable expected to hold an int, without boxing it if it was stored by {@link #setLong}.
+     */
+    public long getLong(final Variable variable, Position pos) {
+        Environment env;
+        if (variable.kind == Variable.LOCAL && variable.scopeDistance >= 0) {
+            env = this;
+            for (int i = 0; i < variable.scopeDistance; i++) {
+                env = env.outer;
+            }
+        } else if (variable.kind == Variable.GLOBAL) {
+            env = global;
+        } else {
+            env = null;
+        }
+        if (env != null && env.variables[variable.index] == LONG_SLOT) return env.longs[variable.index];
+
+        Object value = innerGet(variable, pos);
+        if (value instanceof Long) return (Long) value;
+        throw new UnexpectedResult(value);
+    }
+
+    /**
+     * Assigns or defines an int variable. Frame and global slots keep the value unboxed.
+     */
+    public void setLong(final Variable variable, final long value, Position pos) {
+        Environment env;
+        if (variable.kind == Variable.LOCAL && variable.scopeDistance >= 0) {
+            env = this;
+            for (int i = 0; i < variable.scopeDistance; i++) {
+                env = env.outer;
+            }
+        } else if (variable.kind == Variable.GLOBAL) {
+            env = global;
+        } else {
+            assign(variable, value, pos);
+            return;
+        }
+        if (env.longs == null) env.longs = new long[env.variables.length];
+        env.longs[variable.index] = value;
+        env.variables[variable.index] = LONG_SLOT;
+    }
+
+    private static SplException notDefined(final HeapVariable variable, final Position pos) {
+        return new SplException(String.format("Name '%s' is not defined, in '%s', at line %d",
+                variable.name, pos.getFileName(), pos.getLineNumber()));
+    }
+
     public void invalidate() {
 //        locals.clear();
 //        variables.clear();
@@ -11,13 +11,36 @@ public class Function {
 
     public BlockStmt body;
 
+    /**
+     * Body node of a function defined by a flat tree.
+     */
+    public int entry = -1;
+
     public Environment outerEnv;
 
+    /**
+     * Cells of a converted closure, which then keeps no reference to <code>outerEnv</code>.
+     */
+    public Cell[] captures;
+
     public VariableCount variableCount;
 
     public Function(final Position position, final Environment outer, final VariableCount variableCount) {
         this.position = position;
-        this.outerEnv = outer;
         this.variableCount = variableCount;
+        int[] sources = variableCount == null ? null : variableCount.getCaptures();
+        if (sources == null) {
+            this.outerEnv = outer;
+        } else {
+            this.captures = outer.capture(sources);
+        }
+    }
+
+    /**
+     * Creates the environment of one call, from the environment of the caller.
+     */
+    public Environment newCallScope(final Environment caller) {
+        if (captures != null) return caller.newFrame(variableCount, captures);
+        return new Environment(Environment.FUNCTION_SCOPE, outerEnv, variableCount);
     }
 }
@@ -2,12 +2,25 @@ package interpreter;
 
 import parser.Parser;
 
+/**
+ * A name of the global scope used from a function. It is bound to its global slot by the link step, possibly
+ * after the use was looked up. Names that are never defined stay unbound.
+ */
 public class HeapVariable extends Variable {
 
+    public int symbol;
+
     public String name;
 
-    public HeapVariable(final String name) {
+    public HeapVariable(final int symbol, final String name) {
         super(-1, -1, Parser.ASSIGN);
+        this.symbol = symbol;
         this.name = name;
     }
+
+    public void bind(final int slot) {
+        index = slot;
+        scopeDistance = 0;
+        kind = GLOBAL;
+    }
 }
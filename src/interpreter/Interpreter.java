@@ -1,19 +1,19 @@
 package interpreter;
 
-import parser.BlockStmt;
+import parser.Program;
 
+/**
+ * Runs programs. Each run gets a new global environment, with its own globals and counters, and the interpreter
+ * keeps nothing between runs, so one interpreter may run programs on several threads at once.
+ */
 public class Interpreter {
 
-    public Interpreter() {
+    public Object interpret(final Program program) {
 
-    }
-
-    public Object interpret(BlockStmt root) {
-
-        Environment env = new Environment(Environment.GLOBAL_SCOPE, null, root.getVariableCount());
+        Environment env = new Environment(Environment.GLOBAL_SCOPE, null, program.getVariableCount());
 
         long st = System.currentTimeMillis();
-        Object obj = root.evaluate(env);
+        Object obj = program.evaluate(env);
         long end = System.currentTimeMillis();
         System.out.println("Time used: " + (end - st) + " ms");
         return obj;
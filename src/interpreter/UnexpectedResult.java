@@ -0,0 +1,17 @@
+package interpreter;
+
+/**
+ * Thrown by a typed evaluation when the value does not have the expected type. It carries the value, so the
+ * caller can go on with the boxed path. It has no stack trace.
+ */
+public class UnexpectedResult extends RuntimeException {
+
+    private final static long serialVersionUID = 1L;
+
+    public final Object result;
+
+    public UnexpectedResult(final Object result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+}
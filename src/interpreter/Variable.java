@@ -2,7 +2,28 @@ package interpreter;
 
 public class Variable {
 
+    /**
+     * A slot of the frame, <code>scopeDistance</code> frames out.
+     */
+    public final static int LOCAL = 0;
+
+    /**
+     * A slot of the current frame holding a {@link Cell}, because a closure captures it.
+     */
+    public final static int CELL = 1;
+
+    /**
+     * An entry of the captures of the running function.
+     */
+    public final static int CAPTURED = 2;
+
+    /**
+     * A slot of the global frame.
+     */
+    public final static int GLOBAL = 3;
+
     public int index;
+    public int kind = LOCAL;
     public int varType;
     public int scopeDistance;
 
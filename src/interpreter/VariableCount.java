@@ -4,11 +4,27 @@ public class VariableCount {
 
     private int varCount, constCount;
 
+    private int[] captures;
+
     public VariableCount(final int varCount, final int constCount) {
         this.varCount = varCount;
         this.constCount = constCount;
     }
 
+    public VariableCount(final int varCount, final int constCount, final int[] captures) {
+        this(varCount, constCount);
+        this.captures = captures;
+    }
+
+    /**
+     * Returns where a function takes its captured cells from when it is defined, or <code>null</code> when
+     * closures are not converted. An entry <code>i &gt;= 0</code> is slot <code>i</code> of the defining frame,
+     * and <code>-i - 1</code> is entry <code>i</code> of the captures of the defining function.
+     */
+    public int[] getCaptures() {
+        return captures;
+    }
+
     public int getConstCount() {
         return constCount;
     }
@@ -1,189 +1,153 @@
 package parser;
 
-import interpreter.Function;
+import interpreter.SplException;
 import tokenizer.Position;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Stack;
 
 public class AbstractSyntaxTree {
 
-    private BlockStmt block = new BlockStmt(new Position(0, "parser"));
+    /**
+     * Scopes currently being built, innermost last. Only the innermost one receives new nodes.
+     */
+    private final ArrayList<Scope> scopes = new ArrayList<>();
 
-    private Stack<Node> stack = new Stack<>();
+    private ArrayList<Node> exprList;
 
-    private AbstractSyntaxTree inner;
-
-    private boolean inExpr = false;
+    private int exprIndex;
 
     public AbstractSyntaxTree() {
-
+        scopes.add(new Scope());
     }
 
-    void addName(final Position pos, final String name) {
-        if (inner == null) {
-            NameNode nameNode = new NameNode(pos, name);
-            stack.push(nameNode);
-        } else {
-            inner.addName(pos, name);
+    private static class Scope {
+
+        private final BlockStmt block = new BlockStmt(new Position(0, "parser"));
+
+        private final ArrayList<Node> stack = new ArrayList<>();
+
+        private boolean inExpr = false;
+
+        private void push(Node node) {
+            stack.add(node);
+        }
+
+        private Node pop() {
+            return stack.remove(stack.size() - 1);
+        }
+
+        private Node peek() {
+            return stack.get(stack.size() - 1);
         }
     }
 
+    private Scope current() {
+        return scopes.get(scopes.size() - 1);
+    }
+
+    private void openScope() {
+        scopes.add(new Scope());
+    }
+
+    /**
+     * Finishes the line of the innermost scope, removes the scope and returns its block.
+     */
+    private BlockStmt closeScope() {
+        buildLine();
+        return scopes.remove(scopes.size() - 1).block;
+    }
+
+    void addName(final Position pos, final int symbol, final String name) {
+        current().push(new NameNode(pos, symbol, name));
+    }
+
     void addInteger(final Position pos, final String numString) {
-        if (inner == null) {
-            stack.push(new IntNode(pos, numString));
-        } else {
-            inner.addInteger(pos, numString);
-        }
+        current().push(new IntNode(pos, numString));
     }
 
     void addFloat(final Position pos, final String numString) {
-        if (inner == null) {
-            stack.push(new FloatNode(pos, numString));
-        } else {
-            inner.addFloat(pos, numString);
-        }
+        current().push(new FloatNode(pos, numString));
     }
 
     void addLiteral(final Position pos, final String literal) {
-        if (inner == null) {
-            stack.push(new LiteralNode(pos, literal));
-        } else {
-            inner.addLiteral(pos, literal);
-        }
+        current().push(new LiteralNode(pos, literal));
     }
 
-    void addBinaryOperator(final Position pos, final String op, final int extra) {
-        if (inner == null) {
-            inExpr = true;
-            BinaryOperator bo = new BinaryOperator(pos, op, extra);
-            stack.push(bo);
-        } else {
-            inner.addBinaryOperator(pos, op, extra);
-        }
+    void addBinaryOperator(final Position pos, final int op, final int extra) {
+        Scope scope = current();
+        scope.inExpr = true;
+        scope.push(new BinaryOperator(pos, op, extra));
     }
 
-    void addBinaryOperatorWithAssignment(final Position pos, final String op, final int extra) {
-        if (inner == null) {
-            inExpr = true;
-            BinaryOperator bo = new BinaryOperator(pos, op, extra);
-            bo.setAssignment(true);
-            stack.push(bo);
-        } else {
-            inner.addBinaryOperatorWithAssignment(pos, op, extra);
-        }
+    void addBinaryOperatorWithAssignment(final Position pos, final int op, final int extra) {
+        Scope scope = current();
+        scope.inExpr = true;
+        BinaryOperator bo = new BinaryOperator(pos, op, extra);
+        bo.setAssignment(true);
+        scope.push(bo);
     }
 
-    void addUnaryOperator(final Position pos, final String op, final int extra) {
-        if (inner == null) {
-            inExpr = true;
-            UnaryExpr ue = new UnaryExpr(pos, op, extra);
-            stack.push(ue);
-        } else {
-            inner.addUnaryOperator(pos, op, extra);
-        }
+    void addUnaryOperator(final Position pos, final int op, final int extra) {
+        Scope scope = current();
+        scope.inExpr = true;
+        scope.push(new UnaryExpr(pos, op, extra));
     }
 
     void addBoolean(final Position pos, final boolean value) {
-        if (inner == null) {
-            stack.push(new BooleanStmt(pos, value));
-        } else {
-            inner.addBoolean(pos, value);
-        }
+        current().push(new BooleanStmt(pos, value));
     }
 
     void addBreak(final Position pos) {
-        if (inner == null) {
-            stack.push(new BreakStmt(pos));
-        } else {
-            inner.addBreak(pos);
-        }
+        current().push(new BreakStmt(pos));
     }
 
     void addContinue(final Position pos) {
-        if (inner == null) {
-            stack.push(new ContinueStmt(pos));
-        } else {
-            inner.addContinue(pos);
-        }
+        current().push(new ContinueStmt(pos));
     }
 
     void addAbstract(final Position pos) {
-        if (inner == null) {
-            stack.push(new AbstractStmt(pos));
-        } else {
-            inner.addAbstract(pos);
-        }
+        current().push(new AbstractStmt(pos));
     }
 
     void addNull(final Position pos) {
-        if (inner == null) {
-            stack.push(new NullStmt(pos));
-        } else {
-            inner.addNull(pos);
-        }
+        current().push(new NullStmt(pos));
     }
 
     void addAssignment(final Position pos, final int varLevel) {
-        if (inner == null) {
-            Node nameNode = stack.pop();
-            AssignmentNode assignmentNode = new AssignmentNode(pos, varLevel);
-            assignmentNode.setLeft(nameNode);
-            stack.push(assignmentNode);
-        } else {
-            inner.addAssignment(pos, varLevel);
-        }
+        Scope scope = current();
+        Node nameNode = scope.pop();
+        AssignmentNode assignmentNode = new AssignmentNode(pos, varLevel);
+        assignmentNode.setLeft(nameNode);
+        scope.push(assignmentNode);
     }
 
     void addIf(final Position pos) {
-        if (inner == null) {
-            IfStmt ifs = new IfStmt(pos);
-            stack.push(ifs);
-            inner = new AbstractSyntaxTree();
-        } else {
-            inner.addIf(pos);
-        }
+        current().push(new IfStmt(pos));
+        openScope();
     }
 
     void addWhileLoop(final Position pos) {
-        if (inner == null) {
-            WhileStmt ws = new WhileStmt(pos);
-            stack.push(ws);
-            inner = new AbstractSyntaxTree();
-        } else {
-            inner.addWhileLoop(pos);
-        }
+        current().push(new WhileStmt(pos));
+        openScope();
     }
 
     void addForLoop(final Position pos) {
-        if (inner == null) {
-            ForLoopStmt ws = new ForLoopStmt(pos);
-            stack.push(ws);
-            inner = new AbstractSyntaxTree();
-        } else {
-            inner.addForLoop(pos);
-        }
+        current().push(new ForLoopStmt(pos));
+        openScope();
     }
 
-    void addDef(Position pos, String functionName) {
-        if (inner == null) {
-            DefStmt ds = new DefStmt(pos, new NameNode(pos, functionName));
-            stack.push(ds);
-            inner = new AbstractSyntaxTree();
-        } else {
-            inner.addDef(pos, functionName);
-        }
+    void addDef(Position pos, int symbol, String functionName) {
+        current().push(new DefStmt(pos, new NameNode(pos, symbol, functionName)));
+        openScope();
     }
 
-    void addCall(Position pos, String functionName) {
-        if (inner == null) {
-            FunctionCall functionCall = new FunctionCall(pos, new NameNode(pos, functionName));
-            stack.push(functionCall);
-            inner = new AbstractSyntaxTree();
-        } else {
-            inner.addCall(pos, functionName);
-        }
+    void addCall(Position pos, int symbol, String functionName) {
+        current().push(new FunctionCall(pos, new NameNode(pos, symbol, functionName)));
+        openScope();
+    }
+
+    void addLazyBody(final LazyBlock body) {
+        current().push(body);
     }
 
     void buildClass() {
@@ -191,188 +155,161 @@ public class AbstractSyntaxTree {
     }
 
     void buildCall() {
-        if (inner.inner == null) {
-            inner.buildLine();
-            BlockStmt bs = inner.getBlock();
-            inner = null;
-            FunctionCall call = (FunctionCall) stack.pop();
+        BlockStmt bs = closeScope();
+        FunctionCall call = (FunctionCall) current().peek();
 
-            // TODO: CLASS INIT
+        // TODO: CLASS INIT
 
-            call.arguments = bs;
-            stack.push(call);
-
-        } else {
-            inner.buildCall();
-        }
+        call.arguments = bs;
     }
 
     void buildCondition() {
-        if (inner.inner == null) {
-            inner.buildLine();
-            BlockStmt bs = inner.getBlock();
-            inner = null;
-            ConditionStmt cs = (ConditionStmt) stack.pop();
-            cs.condition = bs;
-            stack.push(cs);
-        } else {
-            inner.buildCondition();
-        }
+        BlockStmt bs = closeScope();
+        ConditionStmt cs = (ConditionStmt) current().peek();
+        cs.condition = bs;
     }
 
     void buildFunctionParams() {
-        if (inner.inner == null) {
-            inner.buildLine();
-            BlockStmt bs = inner.getBlock();
-            inner = null;
-//            System.out.println(bs);
-            DefStmt defStmt = (DefStmt) stack.pop();
-            defStmt.params = bs;
-            stack.push(defStmt);
-        } else {
-            inner.buildFunctionParams();
-        }
+        BlockStmt bs = closeScope();
+        DefStmt defStmt = (DefStmt) current().peek();
+        defStmt.params = bs;
     }
 
     void newAst() {
-        if (inner == null) {
-            inner = new AbstractSyntaxTree();
-        } else {
-            inner.newAst();
-        }
+        openScope();
     }
 
     void buildExpr() {
-        if (inner == null) {
-            if (inExpr) {
-                inExpr = false;
-                ArrayList<Node> list = new ArrayList<>();
-                while (!stack.isEmpty()) {
-                    Node node = stack.peek();
-                    if (node instanceof LeafNode || node instanceof BinaryOperator || node instanceof UnaryExpr ||
-                            (node instanceof FunctionCall && ((FunctionCall) node).arguments != null)) {
-                        list.add(node);
-                        stack.pop();
-                    } else {
-                        break;
-                    }
+        Scope scope = current();
+        if (scope.inExpr) {
+            scope.inExpr = false;
+            ArrayList<Node> stack = scope.stack;
+            int start = stack.size();
+            while (start > 0) {
+                Node node = stack.get(start - 1);
+                if (node instanceof LeafNode || node instanceof BinaryOperator || node instanceof UnaryExpr ||
+                        (node instanceof FunctionCall && ((FunctionCall) node).arguments != null)) {
+                    start--;
+                } else {
+                    break;
                 }
-                Collections.reverse(list);
+            }
 
-                if (!list.isEmpty()) {
-//                    System.out.println(list);
-                    Node node = parseExpr(list);
-                    stack.push(node);
-                }
+            if (start < stack.size()) {
+                ArrayList<Node> list = new ArrayList<>(stack.subList(start, stack.size()));
+                stack.subList(start, stack.size()).clear();
+                stack.add(parseExpr(list));
             }
-        } else {
-            inner.buildExpr();
         }
     }
 
     void buildLine() {
-        if (inner == null) {
-            buildExpr();
-            if (!stack.isEmpty()) {
-                ArrayList<Node> list = new ArrayList<>();
-                list.add(stack.pop());
-                while (!stack.isEmpty()) {
-                    Node node = stack.pop();
-                    if (node instanceof BinaryExpr) {
-                        ((BinaryExpr) node).setRight(list.get(0));
+        buildExpr();
+        Scope scope = current();
+        if (!scope.stack.isEmpty()) {
+            ArrayList<Node> list = new ArrayList<>();
+            list.add(scope.pop());
+            while (!scope.stack.isEmpty()) {
+                Node node = scope.pop();
+                if (node instanceof BinaryExpr) {
+                    ((BinaryExpr) node).setRight(list.get(0));
+                    list.set(0, node);
+                } else if (node instanceof BlockStmt) {
+                    if (list.isEmpty()) list.add(node);
+                    else list.add(0, node);
+                } else if (node instanceof IfStmt) {
+                    ((IfStmt) node).doBlock = list.get(0);
+                    if (list.size() == 2) {
+                        ((IfStmt) node).elseBlock = list.get(1);
+                    }
+                    list.clear();
+                    list.add(node);
+                } else if (node instanceof WhileStmt) {
+                    if (list.isEmpty()) {
+                        list.add(node);
+                    } else {
+                        ((WhileStmt) node).doBlock = list.get(0);
                         list.set(0, node);
-                    } else if (node instanceof BlockStmt) {
-                        if (list.isEmpty()) list.add(node);
-                        else list.add(0, node);
-                    } else if (node instanceof IfStmt) {
-                        System.out.println(list);
-                        ((IfStmt) node).doBlock = list.get(0);
-                        if (list.size() == 2) {
-                            ((IfStmt) node).elseBlock = list.get(1);
-                        }
-                        list.clear();
+                    }
+                } else if (node instanceof ForLoopStmt) {
+                    if (list.isEmpty()) {
+                        list.add(node);
+                    } else {
+                        ((ForLoopStmt) node).doBlock = list.get(0);
+                        list.set(0, node);
+                    }
+                } else if (node instanceof DefStmt) {
+                    if (list.isEmpty()) {
                         list.add(node);
-                    } else if (node instanceof WhileStmt) {
-                        if (list.isEmpty()) {
-                            list.add(node);
-                        } else {
-                            ((WhileStmt) node).doBlock = list.get(0);
-                            list.set(0, node);
-                        }
-                    } else if (node instanceof ForLoopStmt) {
-                        if (list.isEmpty()) {
-                            list.add(node);
-                        } else {
-                            ((ForLoopStmt) node).doBlock = list.get(0);
-                            list.set(0, node);
-                        }
-                    } else if (node instanceof DefStmt) {
-                        if (list.isEmpty()) {
-                            list.add(node);
-                        } else {
-                            ((DefStmt) node).body = (BlockStmt) list.get(0);
-                            list.set(0, node);
-                        }
                     } else {
-                        if (list.isEmpty()) list.add(node);
-                        else list.set(0, node);
+                        ((DefStmt) node).body = (BlockStmt) list.get(0);
+                        list.set(0, node);
                     }
+                } else {
+                    if (list.isEmpty()) list.add(node);
+                    else list.set(0, node);
                 }
-//                System.out.println(list.get(0));
-                block.addLine(list.get(0));
             }
-        } else {
-            inner.buildLine();
+            scope.block.addLine(list.get(0));
         }
     }
 
     void buildAst() {
-        if (inner.inner == null) {
-            BlockStmt blockStmt = inner.getBlock();
-//            traverseEnvironmentVariables(blockStmt);
-            stack.add(blockStmt);
-            inner = null;
-        } else {
-            inner.buildAst();
-        }
+        Scope inner = scopes.remove(scopes.size() - 1);
+        current().push(inner.block);
     }
 
     public BlockStmt getBlock() {
-        return block;
-    }
-
-    private static Node parseExpr(ArrayList<Node> list) {
-        while (list.size() > 1) {
-            int maxPrecedence = 0;
-            int index = 0;
-            for (int i = 0; i < list.size(); i++) {
-                Node node = list.get(i);
-                if (node instanceof BinaryOperator) {
-                    BinaryOperator bo = (BinaryOperator) node;
-                    int pre = bo.getPrecedence();
-                    if (pre > maxPrecedence && bo.noLeft() && bo.noRight()) {
-                        maxPrecedence = pre;
-                        index = i;
-                    }
-                } else if (node instanceof UnaryExpr) {
-                    UnaryExpr ue = (UnaryExpr) node;
-                    int pre = ue.getPrecedence();
-                    if (pre > maxPrecedence && ue.noValue()) {
-                        maxPrecedence = pre;
-                        index = i;
-                    }
-                }
-            }
-            Node node = list.get(index);
-            if (node instanceof UnaryExpr) {
-                UnaryExpr ue = (UnaryExpr) node;
-                ue.setValue(list.remove(index + 1));
-            } else {
-                BinaryOperator bo = (BinaryOperator) node;
-                bo.setRight(list.remove(index + 1));
-                bo.setLeft(list.remove(index - 1));
-            }
+        return scopes.get(0).block;
+    }
+
+    /**
+     * Builds an expression tree from operands and operators in source order, by precedence climbing.
+     */
+    private Node parseExpr(ArrayList<Node> list) {
+        exprList = list;
+        exprIndex = 0;
+        Node node = parseExpr(0);
+        if (exprIndex < list.size()) {
+            Node extra = list.get(exprIndex);
+            throw new SplException(String.format("Unexpected %s, in file '%s', at line %d",
+                    extra, extra.position.getFileName(), extra.position.getLineNumber()));
         }
-        return list.get(0);
+        exprList = null;
+        return node;
+    }
+
+    private Node parseExpr(final int minPrecedence) {
+        Node left = parseOperand();
+        while (exprIndex < exprList.size()) {
+            Node node = exprList.get(exprIndex);
+            if (!isOperator(node)) break;
+            BinaryOperator bo = (BinaryOperator) node;
+            int pre = bo.getPrecedence();
+            if (pre <= minPrecedence) break;
+            exprIndex++;
+            bo.setLeft(left);
+            bo.setRight(parseExpr(pre));
+            left = bo;
+        }
+        return left;
+    }
+
+    private Node parseOperand() {
+        if (exprIndex == exprList.size()) {
+            Node last = exprList.get(exprIndex - 1);
+            throw new SplException(String.format("Missing operand, in file '%s', at line %d",
+                    last.position.getFileName(), last.position.getLineNumber()));
+        }
+        Node node = exprList.get(exprIndex++);
+        if (node instanceof UnaryExpr && ((UnaryExpr) node).noValue()) {
+            UnaryExpr ue = (UnaryExpr) node;
+            ue.setValue(parseExpr(ue.getPrecedence()));
+        }
+        return node;
+    }
+
+    private static boolean isOperator(Node node) {
+        return node instanceof BinaryOperator && ((BinaryOperator) node).noLeft() && ((BinaryOperator) node).noRight();
     }
 }
@@ -0,0 +1,116 @@
+package parser;
+
+import interpreter.SplException;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Compiles a script ahead of time into a runnable jar. The class made by {@link JavaGenerator} is compiled with
+ * the Java compiler of the running JDK and packed with its source and the runtime classes it needs, so the jar
+ * runs with <code>java -jar</code> and no lexing, parsing or tree walking.
+ */
+public class AotCompiler {
+
+    /**
+     * Classes the generated code needs at run time, which are copied from the class path of the compiler.
+     */
+    private final static String[] RUNTIME_CLASSES = {
+            "runtime/Frame", "runtime/Ops", "runtime/SplFunction", "runtime/SplFunction$Body",
+            "parser/Arithmetic", "interpreter/NullPointer", "interpreter/SplException", "tokenizer/TokenLib"
+    };
+
+    /**
+     * Compiles a looked up tree of the script <code>fileName</code> into <code>jar</code>.
+     */
+    public static void compile(final BlockStmt root, final String fileName, final Path jar) throws IOException {
+        String className = className(fileName);
+        String source = JavaGenerator.generate(root, className, fileName);
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new SplException("Ahead of time compilation needs a JDK, no Java compiler was found");
+        }
+        Path dir = Files.createTempDirectory("spl-aot");
+        try {
+            Path sourceFile = dir.resolve(className + ".java");
+            Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
+            Path classes = Files.createDirectory(dir.resolve("classes"));
+            int status = compiler.run(null, null, null, "-nowarn", "-encoding", "UTF-8",
+                    "-cp", System.getProperty("java.class.path"), "-d", classes.toString(), sourceFile.toString());
+            if (status != 0) {
+                throw new SplException(String.format("Java source generated from '%s' does not compile", fileName));
+            }
+            writeJar(jar, className, sourceFile, classes);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Names the class after the script file, as a Java identifier starting with a capital.
+     */
+    static String className(final String fileName) {
+        String name = Path.of(fileName).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) sb.insert(0, "Spl");
+        sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+        return sb.toString();
+    }
+
+    private static void writeJar(final Path jar, final String className, final Path sourceFile,
+                                 final Path classes) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            add(out, sourceFile.getFileName().toString(), Files.readAllBytes(sourceFile));
+            ArrayList<Path> compiled = new ArrayList<>();
+            try (Stream<Path> files = Files.walk(classes)) {
+                files.filter(Files::isRegularFile).sorted().forEach(compiled::add);
+            }
+            for (Path file : compiled) {
+                add(out, classes.relativize(file).toString().replace('\\', '/'), Files.readAllBytes(file));
+            }
+            ClassLoader loader = AotCompiler.class.getClassLoader();
+            for (String name : RUNTIME_CLASSES) {
+                try (InputStream in = loader.getResourceAsStream(name + ".class")) {
+                    if (in == null) throw new SplException("Runtime class " + name + " is not on the class path");
+                    add(out, name + ".class", in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    private static void add(final JarOutputStream out, final String name, final byte[] bytes) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static void delete(final Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
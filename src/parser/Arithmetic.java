@@ -1,182 +1,190 @@
 package parser;
 
 import interpreter.SplException;
-import parser.Node;
+import tokenizer.TokenLib;
 
+/**
+ * Binary operations on numbers, selected by the operator code of {@link TokenLib} and by the classes of the
+ * operands. Operator spellings are only looked up to report errors.
+ */
 public abstract class Arithmetic {
 
-    static Object arithmetic(final Long left, final Object right, final String op) {
-        String rType = right.getClass().getTypeName();
-        switch (rType) {
-            case "java.lang.Long":
-                return longArithmetic(left, (Long) right, op);
-            case "IntNode":
-                return longArithmetic(left, ((IntNode) right).value, op);
-            case "java.lang.Double":
-                return longArithmetic(left, (Double) right, op);
-            case "FloatNode":
-                return longArithmetic(left, ((FloatNode) right).value, op);
-            default:
-                throw new SplException(String.format("Unsupported arithmetic type: Long %s %s", op, rType));
+    /**
+     * Applies an operator to operands of any class, for engines that do not dispatch on the left operand
+     * themselves.
+     */
+    public static Object binary(final Object left, final Object right, final int code) {
+        if (left instanceof Long) {
+            return arithmetic((Long) left, right, code);
+        } else if (left instanceof Double) {
+            return arithmetic((Double) left, right, code);
+        } else {
+            throw new SplException("Unsupported type for arithmetic");
         }
     }
 
-    static Object arithmetic(final Double left, final Object right, final String op) {
-        String rType = right.getClass().getTypeName();
-        switch (rType) {
-            case "java.lang.Long":
-                return doubleArithmetic(left, (Long) right, op);
-            case "IntNode":
-                return doubleArithmetic(left, ((IntNode) right).value, op);
-            case "java.lang.Double":
-                return doubleArithmetic(left, (Double) right, op);
-            case "FloatNode":
-                return doubleArithmetic(left, ((FloatNode) right).value, op);
-            default:
-                throw new SplException(String.format("Unsupported arithmetic type: Long %s %s", op, rType));
+    static Object arithmetic(final Long left, final Object right, final int code) {
+        if (right instanceof Long) {
+            return longArithmetic(left, (Long) right, code);
+        } else if (right instanceof Double) {
+            return longArithmetic(left, (Double) right, code);
+        } else {
+            throw new SplException(String.format("Unsupported arithmetic type: int %s %s", TokenLib.spelling(code),
+                    right.getClass().getTypeName()));
+        }
+    }
+
+    static Object arithmetic(final Double left, final Object right, final int code) {
+        if (right instanceof Long) {
+            return doubleArithmetic(left, (Long) right, code);
+        } else if (right instanceof Double) {
+            return doubleArithmetic(left, (Double) right, code);
+        } else {
+            throw new SplException(String.format("Unsupported arithmetic type: float %s %s",
+                    TokenLib.spelling(code), right.getClass().getTypeName()));
         }
     }
 
-    private static Object longArithmetic(final Long left, final Long right, final String op) {
-        switch (op) {
-            case "+":
+    private static Object longArithmetic(final long left, final long right, final int code) {
+        switch (code) {
+            case TokenLib.ADD:
                 return left + right;
-            case "-":
+            case TokenLib.SUB:
                 return left - right;
-            case "*":
+            case TokenLib.MUL:
                 return left * right;
-            case "/":
+            case TokenLib.DIV:
                 return left / right;
-            case "%":
+            case TokenLib.MOD:
                 return left % right;
-            case ">":
+            case TokenLib.GT:
                 return left > right;
-            case "<":
+            case TokenLib.LT:
                 return left < right;
-            case ">=":
+            case TokenLib.GE:
                 return left >= right;
-            case "<=":
+            case TokenLib.LE:
                 return left <= right;
-            case "<<":
+            case TokenLib.LSHIFT:
                 return left << right;
-            case ">>":
+            case TokenLib.RSHIFT:
                 return left >> right;
-            case "&":
+            case TokenLib.BAND:
                 return left & right;
-            case "^":
+            case TokenLib.XOR:
                 return left ^ right;
-            case "|":
+            case TokenLib.BOR:
                 return left | right;
-            case "==":
-                return left.equals(right);
-            case "!=":
-                return !left.equals(right);
-            case "===":
-                return left.equals(right);
-            case "!==":
-                return !left.equals(right);
+            case TokenLib.EQ:
+            case TokenLib.ID_EQ:
+                return left == right;
+            case TokenLib.NEQ:
+            case TokenLib.ID_NEQ:
+                return left != right;
             default:
-                throw new SplException(String.format("Unsupported operation %s between int and int", op));
+                throw unsupported(code, "int and int");
         }
     }
 
-    private static Object longArithmetic(final Long left, final Double right, final String op) {
-        switch (op) {
-            case "+":
+    private static Object longArithmetic(final long left, final double right, final int code) {
+        switch (code) {
+            case TokenLib.ADD:
                 return left + right;
-            case "-":
+            case TokenLib.SUB:
                 return left - right;
-            case "*":
+            case TokenLib.MUL:
                 return left * right;
-            case "/":
+            case TokenLib.DIV:
                 return left / right;
-            case "%":
+            case TokenLib.MOD:
                 return left % right;
-            case ">":
+            case TokenLib.GT:
                 return left > right;
-            case "<":
+            case TokenLib.LT:
                 return left < right;
-            case ">=":
+            case TokenLib.GE:
                 return left >= right;
-            case "<=":
+            case TokenLib.LE:
                 return left <= right;
-            case "==":
-                return left.longValue() == right.doubleValue();
-            case "!=":
-                return left.longValue() != right.doubleValue();
-            case "===":
+            case TokenLib.EQ:
+                return left == right;
+            case TokenLib.NEQ:
+                return left != right;
+            case TokenLib.ID_EQ:
                 return false;
-            case "!==":
+            case TokenLib.ID_NEQ:
                 return true;
             default:
-                throw new SplException(String.format("Unsupported operation %s between int and float", op));
+                throw unsupported(code, "int and float");
         }
     }
 
-    static Object doubleArithmetic(final Double left, final Double right, final String op) {
-        switch (op) {
-            case "+":
-                return left + right;
-            case "-":
-                return left - right;
-            case "*":
-                return left * right;
-            case "/":
-                return left / right;
-            case "%":
-                return left % right;
-            case ">":
-                return left > right;
-            case "<":
-                return left < right;
-            case ">=":
-                return left >= right;
-            case "<=":
-                return left <= right;
-            case "==":
+    static Object doubleArithmetic(final Double left, final Double right, final int code) {
+        double l = left, r = right;
+        switch (code) {
+            case TokenLib.ADD:
+                return l + r;
+            case TokenLib.SUB:
+                return l - r;
+            case TokenLib.MUL:
+                return l * r;
+            case TokenLib.DIV:
+                return l / r;
+            case TokenLib.MOD:
+                return l % r;
+            case TokenLib.GT:
+                return l > r;
+            case TokenLib.LT:
+                return l < r;
+            case TokenLib.GE:
+                return l >= r;
+            case TokenLib.LE:
+                return l <= r;
+            case TokenLib.EQ:
+            case TokenLib.ID_EQ:
                 return left.equals(right);
-            case "!=":
-                return !left.equals(right);
-            case "===":
-                return left.equals(right);
-            case "!==":
+            case TokenLib.NEQ:
+            case TokenLib.ID_NEQ:
                 return !left.equals(right);
             default:
-                throw new SplException(String.format("Unsupported operation %s between float and float", op));
+                throw unsupported(code, "float and float");
         }
     }
 
-    static Object doubleArithmetic(final Double left, final Long right, final String op) {
-        switch (op) {
-            case "+":
+    static Object doubleArithmetic(final double left, final long right, final int code) {
+        switch (code) {
+            case TokenLib.ADD:
                 return left + right;
-            case "-":
+            case TokenLib.SUB:
                 return left - right;
-            case "*":
+            case TokenLib.MUL:
                 return left * right;
-            case "/":
+            case TokenLib.DIV:
                 return left / right;
-            case "%":
+            case TokenLib.MOD:
                 return left % right;
-            case ">":
+            case TokenLib.GT:
                 return left > right;
-            case "<":
+            case TokenLib.LT:
                 return left < right;
-            case ">=":
+            case TokenLib.GE:
                 return left >= right;
-            case "<=":
+            case TokenLib.LE:
                 return left <= right;
-            case "==":
-                return left.doubleValue() == right.longValue();
-            case "!=":
-                return left.doubleValue() != right.longValue();
-            case "===":
+            case TokenLib.EQ:
+                return left == right;
+            case TokenLib.NEQ:
+                return left != right;
+            case TokenLib.ID_EQ:
                 return false;
-            case "!==":
+            case TokenLib.ID_NEQ:
                 return true;
             default:
-                throw new SplException(String.format("Unsupported operation %s between float and float", op));
+                throw unsupported(code, "float and int");
         }
     }
 
+    private static SplException unsupported(final int code, final String types) {
+        return new SplException(String.format("Unsupported operation %s between %s", TokenLib.spelling(code), types));
+    }
 }
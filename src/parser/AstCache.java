@@ -0,0 +1,415 @@
+package parser;
+
+import interpreter.HeapVariable;
+import interpreter.Variable;
+import interpreter.VariableCount;
+import tokenizer.Position;
+import tokenizer.SymbolTable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Stores resolved syntax trees in <code>.spc</code> files, keyed by the SHA-256 of the source file, the charset
+ * it was decoded with and the way names were resolved, since closure conversion changes the variables of the
+ * tree.
+ * <p>
+ * A cache file holds the symbol table followed by the tree in pre-order, including the resolved variables and
+ * variable counts, so a hit skips lexing, parsing and look up entirely.
+ */
+public class AstCache {
+
+    private final static int MAGIC = 0x53504331;  // "SPC1"
+
+    private final static int VERSION = 8;
+
+    private final static byte NO_VARIABLE = 0;
+    private final static byte LOCAL_VARIABLE = 1;
+    private final static byte HEAP_VARIABLE = 2;
+
+    private final Path cacheFile;
+
+    private final String fileName;
+
+    private final byte[] sourceHash;
+
+    private final String charset;
+
+    /**
+     * Whether the tree is resolved with closure conversion.
+     */
+    private final boolean closures;
+
+    private AstCache(final Path cacheFile, final String fileName, final byte[] sourceHash, final String charset,
+                     final boolean closures) {
+        this.cacheFile = cacheFile;
+        this.fileName = fileName;
+        this.sourceHash = sourceHash;
+        this.charset = charset;
+        this.closures = closures;
+    }
+
+    /**
+     * Creates the cache entry of a source file, stored in <code>cacheDir</code> under the hash of its
+     * content, or next to the source if <code>cacheDir</code> is <code>null</code>. A cached tree decoded with
+     * another charset or resolved with a different <code>closures</code> mode is a miss.
+     */
+    public static AstCache forSource(final Path source, final Path cacheDir, final Charset charset,
+                                     final boolean closures) throws IOException {
+        byte[] hash = hash(source);
+        Path cacheFile;
+        if (cacheDir == null) {
+            String name = source.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            cacheFile = source.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".spc");
+        } else {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) hex.append(String.format("%02x", b));
+            cacheFile = cacheDir.resolve(hex + ".spc");
+        }
+        return new AstCache(cacheFile, source.toString(), hash, charset.name(), closures);
+    }
+
+    private static byte[] hash(final Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the cached tree and interns its names into <code>symbols</code>, which must be empty, or returns
+     * <code>null</code> if there is no valid cache for the current source.
+     */
+    public BlockStmt load(final SymbolTable symbols) {
+        if (!Files.isRegularFile(cacheFile)) return null;
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            byte[] hash = new byte[sourceHash.length];
+            buffer.get(hash);
+            if (!Arrays.equals(hash, sourceHash)) return null;
+            if (!readString(buffer).equals(charset) || (buffer.get() != 0) != closures) return null;
+
+            int symbolCount = buffer.getInt();
+            for (int i = 0; i < symbolCount; i++) {
+                symbols.intern(readString(buffer));
+            }
+            return (BlockStmt) new Reader(buffer, fileName, symbols).readNode();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the resolved tree. The file is replaced atomically so a concurrent run never reads a partial cache.
+     */
+    public void store(final BlockStmt root, final SymbolTable symbols) throws IOException {
+        Path dir = cacheFile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "spc", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(sourceHash);
+            writeString(out, charset);
+            out.writeBoolean(closures);
+            out.writeInt(symbols.size());
+            for (int i = 0; i < symbols.size(); i++) {
+                writeString(out, symbols.name(i));
+            }
+            writeNode(out, root);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeNode(final DataOutputStream out, final Node node) throws IOException {
+        if (node == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(node.nodeType);
+        out.writeInt(node.position.getLineNumber());
+        switch (node.nodeType) {
+            case Node.NAME_NODE:
+                writeName(out, (NameNode) node);
+                break;
+            case Node.INT_NODE:
+                out.writeLong(((IntNode) node).value);
+                break;
+            case Node.FLOAT_NODE:
+                out.writeDouble(((FloatNode) node).value);
+                break;
+            case Node.BOOLEAN_STMT:
+                out.writeBoolean(((BooleanStmt) node).value);
+                break;
+            case Node.LITERAL_NODE:
+                writeString(out, ((LiteralNode) node).literal);
+                break;
+            case Node.NULL_STMT:
+            case Node.ABSTRACT:
+            case Node.BREAK_STMT:
+            case Node.CONTINUE_STMT:
+                break;
+            case Node.ASSIGNMENT_NODE:
+                AssignmentNode an = (AssignmentNode) node;
+                out.writeInt(an.varLevel);
+                writeNode(out, an.left);
+                writeNode(out, an.right);
+                break;
+            case Node.BINARY_OPERATOR:
+                BinaryOperator bo = (BinaryOperator) node;
+                out.writeInt(bo.code);
+                out.writeBoolean(bo.assignment);
+                writeNode(out, bo.left);
+                writeNode(out, bo.right);
+                break;
+            case Node.NOT_EXPR:
+            case Node.NEGATIVE_EXPR:
+            case Node.RETURN_STMT:
+                UnaryExpr ue = (UnaryExpr) node;
+                out.writeInt(ue.code);
+                writeNode(out, ue.value);
+                break;
+            case Node.BLOCK_STMT:
+                BlockStmt bs = (BlockStmt) node;
+                writeCount(out, bs.variableCount);
+                out.writeInt(bs.lines.size());
+                for (Node line : bs.lines) writeNode(out, line);
+                break;
+            case Node.IF_STMT:
+            case Node.WHILE_STMT:
+            case Node.FOR_LOOP_STMT:
+                ConditionStmt cs = (ConditionStmt) node;
+                writeNode(out, cs.condition);
+                writeNode(out, cs.doBlock);
+                if (node.nodeType == Node.IF_STMT) writeNode(out, ((IfStmt) node).elseBlock);
+                writeRange(out, cs.released);
+                if (node.nodeType == Node.IF_STMT) writeRange(out, ((IfStmt) node).elseReleased);
+                break;
+            case Node.DEF_STMT:
+                DefStmt ds = (DefStmt) node;
+                ds.resolvedBody();
+                writeCount(out, ds.variableCount);
+                writeName(out, ds.name);
+                writeNode(out, ds.params);
+                writeNode(out, ds.body);
+                break;
+            case Node.FUNCTION_CALL:
+                FunctionCall fc = (FunctionCall) node;
+                writeName(out, fc.name);
+                writeNode(out, fc.arguments);
+                break;
+            default:
+                throw new IOException("Cannot cache node type " + node.nodeType);
+        }
+    }
+
+    private static void writeName(final DataOutputStream out, final NameNode node) throws IOException {
+        out.writeInt(node.symbol);
+        Variable variable = node.variable;
+        if (variable == null) {
+            out.writeByte(NO_VARIABLE);
+        } else if (variable instanceof HeapVariable) {
+            out.writeByte(HEAP_VARIABLE);
+            out.writeInt(variable.kind == Variable.GLOBAL ? variable.index : -1);
+        } else {
+            out.writeByte(LOCAL_VARIABLE);
+            out.writeInt(variable.index);
+            out.writeInt(variable.scopeDistance);
+            out.writeInt(variable.varType);
+            out.writeByte(variable.kind);
+        }
+    }
+
+    private static void writeRange(final DataOutputStream out, final int[] range) throws IOException {
+        boolean clears = ConditionStmt.clears(range);
+        out.writeInt(clears ? range[0] : 0);
+        out.writeInt(clears ? range[1] : 0);
+    }
+
+    private static void writeCount(final DataOutputStream out, final VariableCount count) throws IOException {
+        if (count == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(count.getVarCount());
+            out.writeInt(count.getConstCount());
+            int[] captures = count.getCaptures();
+            out.writeInt(captures == null ? -1 : captures.length);
+            if (captures != null) {
+                for (int source : captures) out.writeInt(source);
+            }
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Reader {
+
+        private final ByteBuffer buffer;
+
+        private final String fileName;
+
+        private final SymbolTable symbols;
+
+        private Position linePosition;
+
+        private Reader(final ByteBuffer buffer, final String fileName, final SymbolTable symbols) {
+            this.buffer = buffer;
+            this.fileName = fileName;
+            this.symbols = symbols;
+        }
+
+        private Node readNode() throws IOException {
+            int type = buffer.get();
+            if (type == 0) return null;
+            Position pos = position(buffer.getInt());
+            switch (type) {
+                case Node.NAME_NODE:
+                    return readName(pos);
+                case Node.INT_NODE:
+                    return new IntNode(pos, buffer.getLong());
+                case Node.FLOAT_NODE:
+                    return new FloatNode(pos, buffer.getDouble());
+                case Node.BOOLEAN_STMT:
+                    return new BooleanStmt(pos, buffer.get() != 0);
+                case Node.LITERAL_NODE:
+                    return new LiteralNode(pos, readString(buffer));
+                case Node.NULL_STMT:
+                    return new NullStmt(pos);
+                case Node.ABSTRACT:
+                    return new AbstractStmt(pos);
+                case Node.BREAK_STMT:
+                    return new BreakStmt(pos);
+                case Node.CONTINUE_STMT:
+                    return new ContinueStmt(pos);
+                case Node.ASSIGNMENT_NODE:
+                    AssignmentNode an = new AssignmentNode(pos, buffer.getInt());
+                    an.left = readNode();
+                    an.right = readNode();
+                    return an;
+                case Node.BINARY_OPERATOR:
+                    BinaryOperator bo = new BinaryOperator(pos, buffer.getInt(), 0);
+                    bo.assignment = buffer.get() != 0;
+                    bo.left = readNode();
+                    bo.right = readNode();
+                    return bo;
+                case Node.NOT_EXPR:
+                case Node.NEGATIVE_EXPR:
+                case Node.RETURN_STMT:
+                    UnaryExpr ue = new UnaryExpr(pos, buffer.getInt(), 0);
+                    ue.value = readNode();
+                    return ue;
+                case Node.BLOCK_STMT:
+                    BlockStmt bs = new BlockStmt(pos);
+                    bs.variableCount = readCount();
+                    int lineCount = buffer.getInt();
+                    for (int i = 0; i < lineCount; i++) bs.addLine(readNode());
+                    return bs;
+                case Node.IF_STMT:
+                case Node.WHILE_STMT:
+                case Node.FOR_LOOP_STMT:
+                    ConditionStmt cs;
+                    if (type == Node.IF_STMT) {
+                        cs = new IfStmt(pos);
+                    } else if (type == Node.WHILE_STMT) {
+                        cs = new WhileStmt(pos);
+                    } else {
+                        cs = new ForLoopStmt(pos);
+                    }
+                    cs.condition = (BlockStmt) readNode();
+                    cs.doBlock = readNode();
+                    if (type == Node.IF_STMT) ((IfStmt) cs).elseBlock = readNode();
+                    cs.released = readRange();
+                    if (type == Node.IF_STMT) ((IfStmt) cs).elseReleased = readRange();
+                    return cs;
+                case Node.DEF_STMT:
+                    VariableCount count = readCount();
+                    DefStmt ds = new DefStmt(pos, readName(pos));
+                    ds.variableCount = count;
+                    ds.params = (BlockStmt) readNode();
+                    ds.body = (BlockStmt) readNode();
+                    return ds;
+                case Node.FUNCTION_CALL:
+                    FunctionCall fc = new FunctionCall(pos, readName(pos));
+                    fc.arguments = (BlockStmt) readNode();
+                    return fc;
+                default:
+                    throw new IOException("Unknown node type " + type);
+            }
+        }
+
+        private NameNode readName(final Position pos) {
+            int symbol = buffer.getInt();
+            NameNode node = new NameNode(pos, symbol, symbols.name(symbol));
+            switch (buffer.get()) {
+                case LOCAL_VARIABLE:
+                    int index = buffer.getInt();
+                    int distance = buffer.getInt();
+                    node.variable = new Variable(index, distance, buffer.getInt());
+                    node.variable.kind = buffer.get();
+                    break;
+                case HEAP_VARIABLE:
+                    HeapVariable global = new HeapVariable(symbol, node.name);
+                    int slot = buffer.getInt();
+                    if (slot != -1) global.bind(slot);
+                    node.variable = global;
+                    break;
+            }
+            return node;
+        }
+
+        private int[] readRange() {
+            int from = buffer.getInt();
+            int to = buffer.getInt();
+            return from < to ? new int[]{from, to} : null;
+        }
+
+        private VariableCount readCount() {
+            int varCount = buffer.getInt();
+            if (varCount == -1) return null;
+            int constCount = buffer.getInt();
+            int captureCount = buffer.getInt();
+            if (captureCount == -1) return new VariableCount(varCount, constCount);
+            int[] captures = new int[captureCount];
+            for (int i = 0; i < captureCount; i++) captures[i] = buffer.getInt();
+            return new VariableCount(varCount, constCount, captures);
+        }
+
+        private Position position(final int line) {
+            if (linePosition == null || linePosition.getLineNumber() != line) {
+                linePosition = new Position(line, fileName);
+            }
+            return linePosition;
+        }
+    }
+}
@@ -4,15 +4,14 @@ import interpreter.EnvOptimizer;
 import interpreter.Environment;
 import interpreter.VariableCount;
 import tokenizer.Position;
-import util.Utility;
 
 import java.util.ArrayList;
 
 public class BlockStmt extends InternalNode {
 
-    private ArrayList<Node> lines = new ArrayList<>();
+    ArrayList<Node> lines = new ArrayList<>();
 
-    private VariableCount variableCount;
+    VariableCount variableCount;
 
     BlockStmt(final Position position) {
         super(position);
@@ -27,16 +26,10 @@ public class BlockStmt extends InternalNode {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        String outerIndent = Utility.charMultiply(' ', indent);
-        sb.append(outerIndent);
         sb.append("BlockStmt{\n");
-        indent += 2;
-        String innerIndent = Utility.charMultiply(' ', indent);
         for (Node n : lines) {
-            sb.append(innerIndent).append(n.toString()).append("\n");
+            sb.append("  ").append(n.toString().replace("\n", "\n  ")).append("\n");
         }
-        indent -= 2;
-        sb.append(outerIndent);
         sb.append("}");
         return sb.toString();
     }
@@ -62,6 +55,13 @@ public class BlockStmt extends InternalNode {
         return result;
     }
 
+    @Override
+    void replaceChild(Node child, Node replacement) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i) == child) lines.set(i, replacement);
+        }
+    }
+
     int lineCount() {
         return lines.size();
     }
@@ -0,0 +1,64 @@
+package parser;
+
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses and looks up the skipped bodies of a group of functions on a fork-join pool, then forks again for
+ * the functions defined inside them.
+ * <p>
+ * The bodies stay in place in their {@link DefStmt}, so the tree keeps its source order.
+ */
+class BodyResolver extends RecursiveAction {
+
+    private final static long serialVersionUID = 1L;
+
+    private final ArrayList<DefStmt> defs;
+
+    BodyResolver(final ArrayList<DefStmt> defs) {
+        this.defs = defs;
+    }
+
+    @Override
+    protected void compute() {
+        if (defs.size() == 1) {
+            DefStmt def = defs.get(0);
+            ArrayList<DefStmt> inner = new ArrayList<>();
+            collect(def.resolvedBody(), inner);
+            if (!inner.isEmpty()) new BodyResolver(inner).compute();
+        } else {
+            ArrayList<BodyResolver> tasks = new ArrayList<>();
+            for (DefStmt def : defs) {
+                ArrayList<DefStmt> one = new ArrayList<>();
+                one.add(def);
+                tasks.add(new BodyResolver(one));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Adds the definitions under <code>node</code> whose bodies have not been parsed yet.
+     */
+    static void collect(final Node node, final ArrayList<DefStmt> defs) {
+        if (node instanceof DefStmt) {
+            DefStmt def = (DefStmt) node;
+            if (def.body instanceof LazyBlock) defs.add(def);
+            else collect(def.body, defs);
+        } else if (node instanceof BlockStmt) {
+            for (Node line : ((BlockStmt) node).lines) collect(line, defs);
+        } else if (node instanceof ConditionStmt) {
+            ConditionStmt cs = (ConditionStmt) node;
+            collect(cs.condition, defs);
+            collect(cs.doBlock, defs);
+            if (node instanceof IfStmt) collect(((IfStmt) node).elseBlock, defs);
+        } else if (node instanceof BinaryExpr) {
+            collect(((BinaryExpr) node).left, defs);
+            collect(((BinaryExpr) node).right, defs);
+        } else if (node instanceof UnaryExpr) {
+            collect(((UnaryExpr) node).value, defs);
+        } else if (node instanceof FunctionCall) {
+            collect(((FunctionCall) node).arguments, defs);
+        }
+    }
+}
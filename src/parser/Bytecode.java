@@ -0,0 +1,533 @@
+package parser;
+
+import interpreter.Environment;
+import interpreter.HeapVariable;
+import interpreter.SplException;
+import interpreter.Variable;
+import interpreter.VariableCount;
+import tokenizer.Position;
+import tokenizer.TokenLib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A resolved syntax tree compiled to register bytecode for {@link VirtualMachine}.
+ * <p>
+ * Every instruction is four ints: an opcode and the operands <code>a</code>, <code>b</code> and
+ * <code>c</code>. Registers are the slots of the running frame. The variables of the frame come first and
+ * temporaries follow them, so a function's frame is its {@link VariableCount} grown by the temporaries its body
+ * needs. Variables of the frame itself are read and written as registers; cells, captures, globals and names of
+ * enclosing frames go through the {@link Environment}.
+ * <pre>
+ * ADD .. INSTANCEOF  a = b (op) c, the opcode being the operator code of {@link TokenLib}
+ * LOAD_CONST         a = constant b
+ * LOAD_NIL           a = null
+ * MOVE               a = b
+ * LOAD_VAR           a = variable constant b, position constant c
+ * STORE_VAR          assign variable constant a = b, position constant c
+ * DEFINE_VAR         define variable constant a = b, position constant c
+ * JUMP               go to a
+ * JUMP_IF_FALSE      go to b if a is false
+ * JUMP_IF_BROKEN     go to a if the running loop was broken
+ * CLEAR_BROKEN       end of a loop, clears the break flag
+ * BREAK, CONTINUE,
+ * RESUME             set or clear the loop flags of the frame
+ * CLEAR              clear slots a to b
+ * DEF                a = new function from template constant b, default values in registers from c
+ * CALL               a = call of call site constant b, arguments in registers from c
+ * RETURN             return a
+ * ABSTRACT           fail, as a call of an abstract method
+ * </pre>
+ */
+public class Bytecode {
+
+    final static int LOAD_CONST = 64;
+    final static int LOAD_NIL = 65;
+    final static int MOVE = 66;
+    final static int LOAD_VAR = 67;
+    final static int STORE_VAR = 68;
+    final static int DEFINE_VAR = 69;
+    final static int JUMP = 70;
+    final static int JUMP_IF_FALSE = 71;
+    final static int JUMP_IF_BROKEN = 72;
+    final static int CLEAR_BROKEN = 73;
+    final static int BREAK = 74;
+    final static int CONTINUE = 75;
+    final static int RESUME = 76;
+    final static int CLEAR = 77;
+    final static int DEF = 78;
+    final static int CALL = 79;
+    final static int RETURN = 80;
+    final static int ABSTRACT = 81;
+
+    final static int WIDTH = 4;
+
+    private final static String[] NAMES = {
+            "LOAD_CONST", "LOAD_NIL", "MOVE", "LOAD_VAR", "STORE_VAR", "DEFINE_VAR", "JUMP", "JUMP_IF_FALSE",
+            "JUMP_IF_BROKEN", "CLEAR_BROKEN", "BREAK", "CONTINUE", "RESUME", "CLEAR", "DEF", "CALL", "RETURN",
+            "ABSTRACT"
+    };
+
+    int[] code;
+
+    Object[] constants;
+
+    /**
+     * The frame size of the program, with its temporaries.
+     */
+    private VariableCount variableCount;
+
+    // compiler state
+
+    private int codeLength;
+
+    private final ArrayList<Object> constantList = new ArrayList<>();
+
+    private final HashMap<Object, Integer> constantIndex = new HashMap<>();
+
+    private final ArrayList<DefStmt> pendingDefs = new ArrayList<>();
+
+    private final ArrayList<FunctionTemplate> pendingTemplates = new ArrayList<>();
+
+    /**
+     * Number of variables of the frame being compiled, where its temporaries start.
+     */
+    private int frameBase;
+
+    private int nextTemp;
+
+    private int maxTemp;
+
+    private Bytecode() {
+        code = new int[256];
+    }
+
+    /**
+     * Compiles a tree that has already been looked up. Bodies still waiting for lazy parsing are parsed first.
+     */
+    public static Bytecode compile(final BlockStmt root) {
+        Bytecode bytecode = new Bytecode();
+        bytecode.variableCount = bytecode.compileFrame(root, root.getVariableCount());
+        for (int i = 0; i < bytecode.pendingDefs.size(); i++) {
+            DefStmt ds = bytecode.pendingDefs.get(i);
+            FunctionTemplate template = bytecode.pendingTemplates.get(i);
+            template.entry = bytecode.codeLength;
+            template.variableCount = bytecode.compileFrame(ds.body, ds.variableCount);
+        }
+        bytecode.code = Arrays.copyOf(bytecode.code, bytecode.codeLength);
+        bytecode.constants = bytecode.constantList.toArray();
+        bytecode.constantList.clear();
+        bytecode.constantIndex.clear();
+        bytecode.pendingDefs.clear();
+        bytecode.pendingTemplates.clear();
+        return bytecode;
+    }
+
+    public VariableCount getVariableCount() {
+        return variableCount;
+    }
+
+    public Object execute(final Environment global) {
+        return new VirtualMachine(this).run(0, global);
+    }
+
+    /**
+     * Number of instructions.
+     */
+    public int length() {
+        return code.length / WIDTH;
+    }
+
+    /**
+     * Lists the instructions, one per line at their position in <code>code</code>, with the constants they use.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int at = 0; at < code.length; at += WIDTH) {
+            if (at > 0) sb.append('\n');
+            int op = code[at];
+            String name = op >= LOAD_CONST ? NAMES[op - LOAD_CONST] : TokenLib.spelling(op);
+            sb.append(String.format("%6d  %-15s%d %d %d", at, name, code[at + 1], code[at + 2], code[at + 3]));
+            switch (op) {
+                case LOAD_CONST:
+                case LOAD_VAR:
+                case DEF:
+                case CALL:
+                    sb.append("  ; ").append(describe(constants[code[at + 2]]));
+                    break;
+                case STORE_VAR:
+                case DEFINE_VAR:
+                    sb.append("  ; ").append(describe(constants[code[at + 1]]));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String describe(final Object constant) {
+        if (constant instanceof CallSite) {
+            CallSite site = (CallSite) constant;
+            return site.name + "/" + site.argCount;
+        } else if (constant instanceof FunctionTemplate) {
+            return "function at " + ((FunctionTemplate) constant).entry;
+        } else {
+            return String.valueOf(constant);
+        }
+    }
+
+    /**
+     * Compiles a function body or the program into a frame of its own, returning the grown frame size.
+     */
+    private VariableCount compileFrame(final BlockStmt body, final VariableCount count) {
+        frameBase = count.getVarCount();
+        nextTemp = 0;
+        maxTemp = 0;
+        int result = compileNode(body);
+        emit(RETURN, result, 0, 0);
+        return new VariableCount(frameBase + maxTemp, count.getConstCount(), count.getCaptures());
+    }
+
+    private int compileNode(final Node node) {
+        switch (node.nodeType) {
+            case Node.INT_NODE:
+                return loadConst(((IntNode) node).value);
+            case Node.FLOAT_NODE:
+                return loadConst(((FloatNode) node).value);
+            case Node.BOOLEAN_STMT:
+                return loadConst(((BooleanStmt) node).value);
+            case Node.LITERAL_NODE:
+                return loadConst(((LiteralNode) node).literal);
+            case Node.NULL_STMT:
+                return loadConst(Environment.NULL_POINTER);
+            case Node.NAME_NODE:
+                return load((NameNode) node);
+            case Node.ABSTRACT:
+                emit(ABSTRACT, 0, 0, 0);
+                return nil();
+            case Node.BREAK_STMT:
+                emit(BREAK, 0, 0, 0);
+                return nil();
+            case Node.CONTINUE_STMT:
+                emit(CONTINUE, 0, 0, 0);
+                return nil();
+            case Node.NOT_EXPR:
+            case Node.NEGATIVE_EXPR:
+            case Node.RETURN_STMT:
+            case Node.EMPTY_STMT:
+                return nil();
+            case Node.ASSIGNMENT_NODE:
+                return assign((AssignmentNode) node);
+            case Node.BINARY_OPERATOR:
+                return binary((BinaryOperator) node);
+            case Node.BLOCK_STMT:
+                return block((BlockStmt) node);
+            case Node.IF_STMT:
+                return ifStmt((IfStmt) node);
+            case Node.WHILE_STMT:
+                return whileStmt((WhileStmt) node);
+            case Node.FOR_LOOP_STMT:
+                return forLoop((ForLoopStmt) node);
+            case Node.DEF_STMT:
+                return def((DefStmt) node);
+            case Node.FUNCTION_CALL:
+                return call((FunctionCall) node);
+            default:
+                throw new SplException(String.format("Cannot compile %s, in file '%s', at line %d",
+                        node, node.position.getFileName(), node.position.getLineNumber()));
+        }
+    }
+
+    private int load(final NameNode node) {
+        Variable variable = node.variable;
+        if (isRegister(variable)) return variable.index;
+        int dst = temp();
+        emit(LOAD_VAR, dst, constant(variable), constant(node.position));
+        return dst;
+    }
+
+    private int assign(final AssignmentNode an) {
+        int value = compileNode(an.right);
+        if (an.varLevel != Parser.CONST) store(((NameNode) an.left).variable, an.varLevel, value, an.position);
+        return value;
+    }
+
+    private void store(final Variable variable, final int level, final int value, final Position position) {
+        if (isRegister(variable)) {
+            if (variable.index != value) emit(MOVE, variable.index, value, 0);
+        } else {
+            emit(level == Parser.VAR ? DEFINE_VAR : STORE_VAR, constant(variable), value, constant(position));
+        }
+    }
+
+    private int binary(final BinaryOperator bo) {
+        int mark = nextTemp;
+        int left = compileNode(bo.left);
+        if (TokenLib.isLazy(bo.code)) {
+            nextTemp = mark;
+            return nil();
+        }
+        if (left < frameBase && !isLeaf(bo.right)) {
+            // the right operand may assign the variable before it is read
+            int copy = temp();
+            emit(MOVE, copy, left, 0);
+            left = copy;
+        }
+        int right = compileNode(bo.right);
+        nextTemp = mark;
+        int dst = temp();
+        emit(bo.code, dst, left, right);
+        return dst;
+    }
+
+    private int block(final BlockStmt bs) {
+        int lineCount = bs.lineCount();
+        if (lineCount == 0) return nil();
+        for (int i = 0; i < lineCount - 1; i++) {
+            int mark = nextTemp;
+            compileNode(bs.getLine(i));
+            nextTemp = mark;
+        }
+        return compileNode(bs.getLine(lineCount - 1));
+    }
+
+    private int ifStmt(final IfStmt is) {
+        int dst = temp();
+        int mark = nextTemp;
+        int condition = compileNode(is.condition);
+        int jumpElse = emit(JUMP_IF_FALSE, condition, -1, 0);
+        nextTemp = mark;
+        branch(is.released, is.doBlock, dst);
+        int jumpEnd = emit(JUMP, -1, 0, 0);
+        code[jumpElse + 2] = codeLength;
+        if (is.elseBlock != null) {
+            branch(is.elseReleased, is.elseBlock, dst);
+        } else {
+            emit(LOAD_NIL, dst, 0, 0);
+        }
+        code[jumpEnd + 1] = codeLength;
+        return dst;
+    }
+
+    private void branch(final int[] released, final Node body, final int dst) {
+        int mark = nextTemp;
+        int value = compileNode(body);
+        emit(MOVE, dst, value, 0);
+        clear(released);
+        nextTemp = mark;
+    }
+
+    private int whileStmt(final WhileStmt ws) {
+        int dst = nil();
+        int top = codeLength;
+        int jumpBroken = emit(JUMP_IF_BROKEN, -1, 0, 0);
+        int mark = nextTemp;
+        int jumpExit = emit(JUMP_IF_FALSE, compileNode(ws.condition), -1, 0);
+        nextTemp = mark;
+        emit(MOVE, dst, compileNode(ws.doBlock), 0);
+        nextTemp = mark;
+        emit(RESUME, 0, 0, 0);
+        emit(JUMP, top, 0, 0);
+        code[jumpBroken + 1] = codeLength;
+        code[jumpExit + 2] = codeLength;
+        emit(CLEAR_BROKEN, 0, 0, 0);
+        clear(ws.released);
+        return dst;
+    }
+
+    private int forLoop(final ForLoopStmt fs) {
+        if (fs.condition.lineCount() != 3) return nil();  // for-each loops are not implemented
+
+        int dst = temp();
+        int mark = nextTemp;
+        emit(MOVE, dst, compileNode(fs.condition.getLine(0)), 0);
+        nextTemp = mark;
+        int top = codeLength;
+        int jumpBroken = emit(JUMP_IF_BROKEN, -1, 0, 0);
+        int jumpExit = emit(JUMP_IF_FALSE, compileNode(fs.condition.getLine(1)), -1, 0);
+        nextTemp = mark;
+        emit(MOVE, dst, compileNode(fs.doBlock), 0);
+        nextTemp = mark;
+        emit(RESUME, 0, 0, 0);
+        compileNode(fs.condition.getLine(2));
+        nextTemp = mark;
+        emit(JUMP, top, 0, 0);
+        code[jumpBroken + 1] = codeLength;
+        code[jumpExit + 2] = codeLength;
+        emit(CLEAR_BROKEN, 0, 0, 0);
+        clear(fs.released);
+        return dst;
+    }
+
+    private void clear(final int[] released) {
+        if (ConditionStmt.clears(released)) emit(CLEAR, released[0], released[1], 0);
+    }
+
+    private int def(final DefStmt ds) {
+        ds.resolvedBody();
+        int paramCount = ds.params.lineCount();
+        FunctionTemplate template = new FunctionTemplate(ds.position, ds.name.variable, paramCount);
+
+        int base = nextTemp;
+        for (int i = 0; i < paramCount; i++) temp();
+        for (int i = 0; i < paramCount; i++) {
+            Node param = ds.params.getLine(i);
+            if (param instanceof NameNode) {
+                template.params[i] = ((NameNode) param).variable;
+            } else if (param instanceof AssignmentNode) {
+                AssignmentNode an = (AssignmentNode) param;
+                template.params[i] = ((NameNode) an.left).variable;
+                template.hasDefault[i] = true;
+                int mark = nextTemp;
+                emit(MOVE, frameBase + base + i, compileNode(an.right), 0);
+                nextTemp = mark;
+            } else {
+                throw new SplException(String.format(
+                        "Unexpected syntax in function declaration, in file '%s', at line %d",
+                        ds.position.getFileName(), ds.position.getLineNumber()));
+            }
+        }
+        nextTemp = base;
+        int dst = temp();
+        emit(DEF, dst, constant(template), frameBase + base);
+        store(ds.name.variable, Parser.VAR, dst, ds.position);
+
+        pendingDefs.add(ds);
+        pendingTemplates.add(template);
+        return dst;
+    }
+
+    private int call(final FunctionCall fc) {
+        int argCount = fc.arguments.lineCount();
+        int base = nextTemp;
+        for (int i = 0; i < argCount; i++) temp();
+        for (int i = 0; i < argCount; i++) {
+            int mark = nextTemp;
+            emit(MOVE, frameBase + base + i, compileNode(fc.arguments.getLine(i)), 0);
+            nextTemp = mark;
+        }
+        nextTemp = base;
+        int dst = temp();
+        CallSite site = new CallSite(fc.position, fc.name.variable, fc.name.name, argCount);
+        emit(CALL, dst, constant(site), frameBase + base);
+        return dst;
+    }
+
+    private static boolean isRegister(final Variable variable) {
+        return variable != null && variable.kind == Variable.LOCAL && variable.scopeDistance == 0 &&
+                !(variable instanceof HeapVariable);
+    }
+
+    private static boolean isLeaf(final Node node) {
+        return node instanceof LeafNode;
+    }
+
+    private int temp() {
+        int register = frameBase + nextTemp++;
+        if (nextTemp > maxTemp) maxTemp = nextTemp;
+        return register;
+    }
+
+    private int nil() {
+        int dst = temp();
+        emit(LOAD_NIL, dst, 0, 0);
+        return dst;
+    }
+
+    private int loadConst(final Object value) {
+        int dst = temp();
+        emit(LOAD_CONST, dst, constant(value), 0);
+        return dst;
+    }
+
+    /**
+     * Appends an instruction and returns its position in <code>code</code>, for patching jump targets.
+     */
+    private int emit(final int op, final int a, final int b, final int c) {
+        if (codeLength + WIDTH > code.length) code = Arrays.copyOf(code, code.length * 2);
+        int at = codeLength;
+        code[at] = op;
+        code[at + 1] = a;
+        code[at + 2] = b;
+        code[at + 3] = c;
+        codeLength += WIDTH;
+        return at;
+    }
+
+    /**
+     * Adds a constant, sharing equal values. Mutable entries such as variables are shared by identity.
+     */
+    private int constant(final Object value) {
+        Object key = value instanceof Long || value instanceof Double || value instanceof Boolean ||
+                value instanceof String ? value : new IdentityKey(value);
+        Integer found = constantIndex.get(key);
+        if (found != null) return found;
+        constantList.add(value);
+        constantIndex.put(key, constantList.size() - 1);
+        return constantList.size() - 1;
+    }
+
+    /**
+     * What a <code>DEF</code> instruction needs to create a function.
+     */
+    static class FunctionTemplate {
+
+        final Position position;
+
+        final Variable name;
+
+        final Variable[] params;
+
+        final boolean[] hasDefault;
+
+        int entry;
+
+        VariableCount variableCount;
+
+        FunctionTemplate(final Position position, final Variable name, final int paramCount) {
+            this.position = position;
+            this.name = name;
+            this.params = new Variable[paramCount];
+            this.hasDefault = new boolean[paramCount];
+        }
+    }
+
+    static class CallSite {
+
+        final Position position;
+
+        final Variable function;
+
+        final String name;
+
+        final int argCount;
+
+        CallSite(final Position position, final Variable function, final String name, final int argCount) {
+            this.position = position;
+            this.function = function;
+            this.name = name;
+            this.argCount = argCount;
+        }
+    }
+
+    private static class IdentityKey {
+
+        private final Object value;
+
+        private IdentityKey(final Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof IdentityKey && ((IdentityKey) obj).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package parser;
+
+import interpreter.Environment;
+import interpreter.Function;
+import interpreter.ParameterPair;
+import interpreter.SplException;
+import interpreter.Variable;
+import tokenizer.Position;
+import tokenizer.TokenLib;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A middle tier of the tree engine, between walking the tree and {@link JitCompiler}. The body of a hot function
+ * is translated once into a tree of lambdas, each made for its node: the operator, the kind, slot and scope
+ * distance of each name, the shape of each branch and the slots each statement clears are all chosen while
+ * compiling, so running the body makes no such decisions again.
+ * <p>
+ * Compiled bodies run in the same environments as the tree and give the same results, assignments included.
+ * Calls counting towards hotness work as in {@link JitCompiler}: each call site counts its calls and compiles
+ * the body it calls once it passes the threshold.
+ */
+public class ClosureCompiler {
+
+    /**
+     * A compiled node.
+     */
+    interface Code {
+
+        Object run(Environment env);
+    }
+
+    private final int threshold;
+
+    private final IdentityHashMap<BlockStmt, Code> compiled = new IdentityHashMap<>();
+
+    public ClosureCompiler(final int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Lets every call site of a looked up tree count its calls.
+     */
+    public BlockStmt prepare(final BlockStmt root) {
+        FunctionCall.forEach(root, fc -> fc.tier = this);
+        return root;
+    }
+
+    /**
+     * Counts a call of <code>function</code> at <code>site</code> and returns its compiled body, or
+     * <code>null</code> while it is not hot.
+     */
+    Code compiled(final FunctionCall site, final Function function) {
+        Entry entry = site.tierEntry;
+        if (entry != null && entry.body == function.body) return entry.code;
+        if (++site.tierCalls < threshold) return null;
+        site.tierCalls = 0;
+        entry = new Entry(function.body, compile(function.body));
+        site.tierEntry = entry;
+        return entry.code;
+    }
+
+    private synchronized Code compile(final BlockStmt body) {
+        Code code = compiled.get(body);
+        if (code == null) {
+            code = compileNode(body);
+            compiled.put(body, code);
+        }
+        return code;
+    }
+
+    /**
+     * The compiled body a call site last saw, as in {@link JitCompiler.Entry}.
+     */
+    static class Entry {
+
+        final BlockStmt body;
+
+        final Code code;
+
+        Entry(final BlockStmt body, final Code code) {
+            this.body = body;
+            this.code = code;
+        }
+    }
+
+    Code compileNode(final Node node) {
+        if (node instanceof IntNode) {
+            Object value = ((IntNode) node).value;
+            return env -> value;
+        } else if (node instanceof FloatNode) {
+            Object value = ((FloatNode) node).value;
+            return env -> value;
+        } else if (node instanceof BooleanStmt) {
+            Object value = ((BooleanStmt) node).value;
+            return env -> value;
+        } else if (node instanceof LiteralNode) {
+            String literal = ((LiteralNode) node).literal;
+            return env -> literal;
+        } else if (node instanceof NameNode) {
+            return name((NameNode) node);
+        } else if (node instanceof AssignmentNode) {
+            return assignment((AssignmentNode) node);
+        } else if (node instanceof BinaryOperator) {
+            BinaryOperator bo = (BinaryOperator) node;
+            return binary(bo.code, compileNode(bo.left), compileNode(bo.right));
+        } else if (node instanceof SpecializedBinary) {
+            SpecializedBinary sb = (SpecializedBinary) node;
+            return binary(sb.generic.code, compileNode(sb.left), compileNode(sb.right));
+        } else if (node instanceof LazyBlock) {
+            return node::evaluate;
+        } else if (node instanceof BlockStmt) {
+            return block((BlockStmt) node);
+        } else if (node instanceof IfStmt) {
+            return ifStmt((IfStmt) node);
+        } else if (node instanceof WhileStmt) {
+            return whileStmt((WhileStmt) node);
+        } else if (node instanceof ForLoopStmt) {
+            return forLoop((ForLoopStmt) node);
+        } else if (node instanceof DefStmt) {
+            return def((DefStmt) node);
+        } else if (node instanceof FunctionCall) {
+            return call((FunctionCall) node);
+        } else if (node instanceof UnaryExpr || node instanceof EmptyStmt) {
+            return env -> null;
+        } else {
+            return node::evaluate;  // constants without operands and loop flags
+        }
+    }
+
+    private static Code name(final NameNode node) {
+        Variable variable = node.variable;
+        Position pos = node.position;
+        if (variable != null && variable.kind == Variable.LOCAL && variable.scopeDistance == 0) {
+            int index = variable.index;
+            return env -> env.getSlot(index);
+        }
+        return env -> env.get(variable, pos);
+    }
+
+    private Code assignment(final AssignmentNode an) {
+        Code right = compileNode(an.right);
+        Node result = an.right;  // what the tree returns
+        Variable variable = ((NameNode) an.left).variable;
+        Position pos = an.position;
+        switch (an.varLevel) {
+            case Parser.ASSIGN:
+                if (variable.kind == Variable.LOCAL && variable.scopeDistance == 0) {
+                    int index = variable.index;
+                    return env -> {
+                        env.getSlots()[index] = right.run(env);
+                        return result;
+                    };
+                }
+                return env -> {
+                    env.assign(variable, right.run(env), pos);
+                    return result;
+                };
+            case Parser.CONST:
+                return env -> {
+                    right.run(env);
+                    return result;
+                };
+            case Parser.VAR:
+                return env -> {
+                    env.defineVar(variable, right.run(env), pos);
+                    return result;
+                };
+            default:
+                throw new SplException("Unknown variable level");
+        }
+    }
+
+    private static Code binary(final int code, final Code left, final Code right) {
+        switch (code) {
+            case TokenLib.AND:
+            case TokenLib.OR:
+                return env -> {
+                    left.run(env);
+                    return null;
+                };
+            case TokenLib.ADD:
+                return env -> {
+                    Object l = left.run(env), r = right.run(env);
+                    return l instanceof Long && r instanceof Long ? (Object) ((Long) l + (Long) r) :
+                            Arithmetic.binary(l, r, code);
+                };
+            case TokenLib.SUB:
+                return env -> {
+                    Object l = left.run(env), r = right.run(env);
+                    return l instanceof Long && r instanceof Long ? (Object) ((Long) l - (Long) r) :
+                            Arithmetic.binary(l, r, code);
+                };
+            case TokenLib.MUL:
+                return env -> {
+                    Object l = left.run(env), r = right.run(env);
+                    return l instanceof Long && r instanceof Long ? (Object) ((Long) l * (Long) r) :
+                            Arithmetic.binary(l, r, code);
+                };
+            case TokenLib.LT:
+                return env -> {
+                    Object l = left.run(env), r = right.run(env);
+                    return l instanceof Long && r instanceof Long ? (Object) ((Long) l < (Long) r) :
+                            Arithmetic.binary(l, r, code);
+                };
+            case TokenLib.GT:
+                return env -> {
+                    Object l = left.run(env), r = right.run(env);
+                    return l instanceof Long && r instanceof Long ? (Object) ((Long) l > (Long) r) :
+                            Arithmetic.binary(l, r, code);
+                };
+            case TokenLib.LE:
+                return env -> {
+                    Object l = left.run(env), r = right.run(env);
+                    return l instanceof Long && r instanceof Long ? (Object) ((Long) l <= (Long) r) :
+                            Arithmetic.binary(l, r, code);
+                };
+            case TokenLib.GE:
+                return env -> {
+                    Object l = left.run(env), r = right.run(env);
+                    return l instanceof Long && r instanceof Long ? (Object) ((Long) l >= (Long) r) :
+                            Arithmetic.binary(l, r, code);
+                };
+            default:
+                return env -> Arithmetic.binary(left.run(env), right.run(env), code);
+        }
+    }
+
+    private Code block(final BlockStmt bs) {
+        int lineCount = bs.lineCount();
+        switch (lineCount) {
+            case 0:
+                return env -> null;
+            case 1:
+                return compileNode(bs.getLine(0));
+            case 2: {
+                Code first = compileNode(bs.getLine(0));
+                Code second = compileNode(bs.getLine(1));
+                return env -> {
+                    first.run(env);
+                    return second.run(env);
+                };
+            }
+            default: {
+                Code[] lines = new Code[lineCount];
+                for (int i = 0; i < lineCount; i++) lines[i] = compileNode(bs.getLine(i));
+                return env -> {
+                    Object result = null;
+                    for (Code line : lines) result = line.run(env);
+                    return result;
+                };
+            }
+        }
+    }
+
+    private Code condition(final ConditionStmt cs) {
+        return compileNode(cs.test != null ? cs.test : cs.condition);
+    }
+
+    private Code ifStmt(final IfStmt is) {
+        Code condition = condition(is);
+        Code then = clearing(is.released, compileNode(is.doBlock));
+        if (is.elseBlock == null) return env -> (Boolean) condition.run(env) ? then.run(env) : null;
+        Code otherwise = clearing(is.elseReleased, compileNode(is.elseBlock));
+        return env -> (Boolean) condition.run(env) ? then.run(env) : otherwise.run(env);
+    }
+
+    private Code whileStmt(final WhileStmt ws) {
+        Code condition = condition(ws);
+        Code body = compileNode(ws.doBlock);
+        return clearing(ws.released, env -> {
+            Object result = null;
+            while (!env.broken && (Boolean) condition.run(env)) {
+                result = body.run(env);
+                env.resume();
+            }
+            env.broken = false;
+            return result;
+        });
+    }
+
+    private Code forLoop(final ForLoopStmt fs) {
+        int partCount = fs.condition.lineCount();
+        if (partCount == 2) return env -> null;  // for-each loops are not implemented
+        if (partCount != 3) return fs::evaluate;
+
+        Code start = compileNode(fs.condition.getLine(0));
+        Code end = compileNode(fs.condition.getLine(1));
+        Code step = compileNode(fs.condition.getLine(2));
+        Code body = compileNode(fs.doBlock);
+        return clearing(fs.released, env -> {
+            Object result = start.run(env);
+            while (!env.broken && (Boolean) end.run(env)) {
+                result = body.run(env);
+                env.resume();
+                step.run(env);
+            }
+            env.broken = false;
+            return result;
+        });
+    }
+
+    /**
+     * Adds the clearing of the slots a statement gives back, if it gives back any.
+     */
+    private static Code clearing(final int[] released, final Code code) {
+        if (!ConditionStmt.clears(released)) return code;
+        int from = released[0];
+        int to = released[1];
+        return env -> {
+            Object result = code.run(env);
+            env.clearSlots(from, to);
+            return result;
+        };
+    }
+
+    private Code def(final DefStmt ds) {
+        int paramCount = ds.params.lineCount();
+        Variable[] params = new Variable[paramCount];
+        Code[] defaults = new Code[paramCount];
+        for (int i = 0; i < paramCount; i++) {
+            Node param = ds.params.getLine(i);
+            if (param.nodeType == Node.NAME_NODE) {
+                params[i] = ((NameNode) param).variable;
+            } else if (param.nodeType == Node.ASSIGNMENT_NODE) {
+                AssignmentNode an = (AssignmentNode) param;
+                params[i] = ((NameNode) an.left).variable;
+                defaults[i] = compileNode(an.right);
+            } else {
+                return ds::evaluate;  // reports the syntax error as the tree does
+            }
+        }
+        Variable name = ds.name.variable;
+        Position pos = ds.position;
+        return env -> {
+            Function function = new Function(pos, env, ds.variableCount);
+            ParameterPair[] pairs = new ParameterPair[paramCount];
+            for (int i = 0; i < paramCount; i++) {
+                pairs[i] = new ParameterPair(params[i], defaults[i] == null ? null : defaults[i].run(env));
+            }
+            function.params = pairs;
+            function.body = ds.body;
+            env.defineVar(name, function, pos);
+            return function;
+        };
+    }
+
+    private Code call(final FunctionCall fc) {
+        int argCount = fc.arguments.lineCount();
+        Code[] args = new Code[argCount];
+        for (int i = 0; i < argCount; i++) args[i] = compileNode(fc.arguments.getLine(i));
+        return env -> fc.call(env, args);
+    }
+}
@@ -0,0 +1,149 @@
+package parser;
+
+import interpreter.SplException;
+import tokenizer.TokenLib;
+
+import java.util.ArrayList;
+
+/**
+ * Folds operators with constant operands into constants and prunes conditional statements whose condition is
+ * constant, working on a tree that has already been looked up.
+ * <p>
+ * Block variables have slots in the frame of their function, so a pruned branch can take the place of its
+ * statement. Bodies that are still waiting for lazy parsing are left alone.
+ */
+public class ConstantFolder {
+
+    private final ArrayList<String> folds = new ArrayList<>();
+
+    public BlockStmt fold(final BlockStmt root) {
+        foldBlock(root);
+        return root;
+    }
+
+    /**
+     * Returns a description of each fold, in the order they were made.
+     */
+    public ArrayList<String> getFolds() {
+        return folds;
+    }
+
+    private Node fold(final Node node) {
+        if (node instanceof LazyBlock) {
+            return node;
+        } else if (node instanceof BlockStmt) {
+            foldBlock((BlockStmt) node);
+        } else if (node instanceof AssignmentNode) {
+            AssignmentNode an = (AssignmentNode) node;
+            an.right = fold(an.right);
+        } else if (node instanceof BinaryOperator) {
+            return foldBinary((BinaryOperator) node);
+        } else if (node instanceof UnaryExpr) {
+            UnaryExpr ue = (UnaryExpr) node;
+            ue.value = fold(ue.value);
+        } else if (node instanceof IfStmt) {
+            return foldIf((IfStmt) node);
+        } else if (node instanceof WhileStmt) {
+            return foldWhile((WhileStmt) node);
+        } else if (node instanceof ForLoopStmt) {
+            ForLoopStmt fs = (ForLoopStmt) node;
+            foldBlock(fs.condition);
+            fs.doBlock = fold(fs.doBlock);
+        } else if (node instanceof DefStmt) {
+            DefStmt ds = (DefStmt) node;
+            foldBlock(ds.params);
+            if (!(ds.body instanceof LazyBlock)) foldBlock(ds.body);
+        } else if (node instanceof FunctionCall) {
+            foldBlock(((FunctionCall) node).arguments);
+        }
+        return node;
+    }
+
+    /**
+     * Folds each line and removes pruned statements that are not the last line, which gives the block its
+     * value.
+     */
+    private void foldBlock(final BlockStmt block) {
+        ArrayList<Node> lines = block.lines;
+        int last = lines.size() - 1;
+        int kept = 0;
+        for (int i = 0; i <= last; i++) {
+            Node line = fold(lines.get(i));
+            if (i == last || !(line instanceof EmptyStmt)) {
+                lines.set(kept++, line);
+            }
+        }
+        lines.subList(kept, lines.size()).clear();
+    }
+
+    private Node foldBinary(final BinaryOperator bo) {
+        bo.left = fold(bo.left);
+        bo.right = fold(bo.right);
+        if (bo.assignment || TokenLib.isLazy(bo.code)) return bo;
+
+        Object left = constantValue(bo.left);
+        Object right = constantValue(bo.right);
+        if (!(left instanceof Long || left instanceof Double) || !(right instanceof Long || right instanceof Double)) {
+            return bo;
+        }
+        Object value;
+        try {
+            value = left instanceof Long ? Arithmetic.arithmetic((Long) left, right, bo.code) :
+                    Arithmetic.arithmetic((Double) left, right, bo.code);
+        } catch (SplException | ArithmeticException e) {
+            return bo;  // left for the interpreter to report at run time
+        }
+        Node folded;
+        if (value instanceof Long) {
+            folded = new IntNode(bo.position, (Long) value);
+        } else if (value instanceof Double) {
+            folded = new FloatNode(bo.position, (Double) value);
+        } else if (value instanceof Boolean) {
+            folded = new BooleanStmt(bo.position, (Boolean) value);
+        } else {
+            return bo;
+        }
+        record(bo, bo + " => " + folded);
+        return folded;
+    }
+
+    private Node foldIf(final IfStmt is) {
+        foldBlock(is.condition);
+        is.doBlock = fold(is.doBlock);
+        is.elseBlock = fold(is.elseBlock);
+        Boolean condition = constantCondition(is.condition);
+        if (condition == null) return is;
+
+        Node kept = condition ? is.doBlock : is.elseBlock;
+        record(is, "if (" + condition + ") => " + (condition ? "then branch" : "else branch"));
+        return kept == null ? new EmptyStmt(is.position) : kept;
+    }
+
+    private Node foldWhile(final WhileStmt ws) {
+        foldBlock(ws.condition);
+        ws.doBlock = fold(ws.doBlock);
+        if (Boolean.FALSE.equals(constantCondition(ws.condition))) {
+            record(ws, "while (false) => removed");
+            return new EmptyStmt(ws.position);
+        }
+        return ws;
+    }
+
+    private static Object constantValue(final Node node) {
+        if (node instanceof IntNode) return ((IntNode) node).value;
+        if (node instanceof FloatNode) return ((FloatNode) node).value;
+        if (node instanceof BooleanStmt) return ((BooleanStmt) node).value;
+        return null;
+    }
+
+    private static Boolean constantCondition(final BlockStmt condition) {
+        if (condition.lineCount() != 1) return null;
+        Node line = condition.getLine(0);
+        return line instanceof BooleanStmt ? ((BooleanStmt) line).value : null;
+    }
+
+    private void record(final Node node, final String description) {
+        folds.add(String.format("%s:%d: %s", node.position.getFileName(), node.position.getLineNumber(),
+                description));
+    }
+}
@@ -0,0 +1,398 @@
+package parser;
+
+import interpreter.Environment;
+import interpreter.SplException;
+import interpreter.VariableCount;
+import tokenizer.Position;
+import tokenizer.TokenLib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A resolved syntax tree encoded in parallel int arrays, one entry per node, with its children, names and
+ * constants referenced by index.
+ * <p>
+ * Node fields by kind, where <code>a</code>, <code>b</code> and <code>c</code> are node indices unless noted:
+ * <pre>
+ * INT_NODE, FLOAT_NODE,
+ * LITERAL_NODE, BOOLEAN_STMT   a = constant
+ * NAME_NODE                    a = constant (Variable)
+ * ASSIGNMENT_NODE              op = variable level, a = constant (Variable), b = value
+ * BINARY_OPERATOR              op = operator code, a = left, b = right
+ * NOT_EXPR, NEGATIVE_EXPR,
+ * RETURN_STMT                  op = operator code, a = value
+ * BLOCK_STMT                   op = constant (VariableCount), a = first child slot, b = child count
+ * IF_STMT, WHILE_STMT,
+ * FOR_LOOP_STMT                op = constant (released slot ranges of the body and the else) or -1,
+ *                              a = condition, b = body, c = else or -1
+ * DEF_STMT                     op = constant (VariableCount), a = constant (Variable), b = params, c = body
+ * FUNCTION_CALL                op = constant (Variable), a = arguments, c = constant (name)
+ * </pre>
+ */
+public class FlatAst {
+
+    final static int NO_NODE = -1;
+
+    int[] kinds;
+    int[] ops;
+    int[] a;
+    int[] b;
+    int[] c;
+
+    /**
+     * Index of each node's position in {@link #positions}.
+     */
+    int[] lines;
+
+    int nodeCount;
+
+    /**
+     * Child node indices of blocks, stored contiguously per block.
+     */
+    int[] children;
+
+    int childCount;
+
+    Object[] constants;
+
+    int constantCount;
+
+    Position[] positions;
+
+    int root;
+
+    private final HashMap<Object, Integer> constantIndex = new HashMap<>();
+
+    private final ArrayList<Position> positionList = new ArrayList<>();
+
+    private FlatAst(final int capacity) {
+        kinds = new int[capacity];
+        ops = new int[capacity];
+        a = new int[capacity];
+        b = new int[capacity];
+        c = new int[capacity];
+        lines = new int[capacity];
+        children = new int[capacity];
+        constants = new Object[capacity];
+    }
+
+    /**
+     * Encodes a tree that has already been looked up.
+     */
+    public static FlatAst encode(final BlockStmt root) {
+        FlatAst ast = new FlatAst(64);
+        ast.root = ast.encodeNode(root);
+        ast.positions = ast.positionList.toArray(new Position[0]);
+        ast.constantIndex.clear();
+        ast.positionList.clear();
+        ast.trim();
+        return ast;
+    }
+
+    private void trim() {
+        kinds = Arrays.copyOf(kinds, nodeCount);
+        ops = Arrays.copyOf(ops, nodeCount);
+        a = Arrays.copyOf(a, nodeCount);
+        b = Arrays.copyOf(b, nodeCount);
+        c = Arrays.copyOf(c, nodeCount);
+        lines = Arrays.copyOf(lines, nodeCount);
+        children = Arrays.copyOf(children, childCount);
+        constants = Arrays.copyOf(constants, constantCount);
+    }
+
+    public VariableCount getVariableCount() {
+        return (VariableCount) constants[ops[root]];
+    }
+
+    public Object evaluate(final Environment env) {
+        return new FlatEvaluator(this).evaluate(root, env);
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    Position position(final int node) {
+        return positions[lines[node]];
+    }
+
+    /**
+     * Lists the nodes, one per line, with their operands and the constants they use.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int node = 0; node < nodeCount; node++) {
+            sb.append(String.format("%5d  %-16s", node, kindName(kinds[node])));
+            switch (kinds[node]) {
+                case Node.NAME_NODE:
+                case Node.INT_NODE:
+                case Node.FLOAT_NODE:
+                case Node.LITERAL_NODE:
+                case Node.BOOLEAN_STMT:
+                    sb.append(constants[a[node]]);
+                    break;
+                case Node.ASSIGNMENT_NODE:
+                    sb.append(constants[a[node]]).append(" = ").append(b[node]);
+                    break;
+                case Node.BINARY_OPERATOR:
+                    sb.append(a[node]).append(' ').append(TokenLib.spelling(ops[node])).append(' ').append(b[node]);
+                    break;
+                case Node.NOT_EXPR:
+                case Node.NEGATIVE_EXPR:
+                case Node.RETURN_STMT:
+                    sb.append(TokenLib.spelling(ops[node])).append(' ').append(a[node]);
+                    break;
+                case Node.BLOCK_STMT:
+                    sb.append(Arrays.toString(Arrays.copyOfRange(children, a[node], a[node] + b[node])));
+                    break;
+                case Node.IF_STMT:
+                case Node.WHILE_STMT:
+                case Node.FOR_LOOP_STMT:
+                    sb.append(a[node]).append(" then ").append(b[node]);
+                    if (c[node] != NO_NODE) sb.append(" else ").append(c[node]);
+                    break;
+                case Node.DEF_STMT:
+                    sb.append(constants[a[node]]).append(" params ").append(b[node]).append(" body ").append(c[node]);
+                    break;
+                case Node.FUNCTION_CALL:
+                    sb.append(constants[c[node]]).append(" args ").append(a[node]);
+                    break;
+            }
+            sb.append('\n');
+        }
+        return sb.append("root ").append(root).toString();
+    }
+
+    private static String kindName(final int kind) {
+        switch (kind) {
+            case Node.INT_NODE:
+                return "INT";
+            case Node.FLOAT_NODE:
+                return "FLOAT";
+            case Node.LITERAL_NODE:
+                return "LITERAL";
+            case Node.NAME_NODE:
+                return "NAME";
+            case Node.BOOLEAN_STMT:
+                return "BOOLEAN";
+            case Node.NULL_STMT:
+                return "NULL";
+            case Node.BREAK_STMT:
+                return "BREAK";
+            case Node.CONTINUE_STMT:
+                return "CONTINUE";
+            case Node.ASSIGNMENT_NODE:
+                return "ASSIGNMENT";
+            case Node.BINARY_OPERATOR:
+                return "BINARY";
+            case Node.NEGATIVE_EXPR:
+                return "NEGATIVE";
+            case Node.NOT_EXPR:
+                return "NOT";
+            case Node.RETURN_STMT:
+                return "RETURN";
+            case Node.BLOCK_STMT:
+                return "BLOCK";
+            case Node.IF_STMT:
+                return "IF";
+            case Node.WHILE_STMT:
+                return "WHILE";
+            case Node.FOR_LOOP_STMT:
+                return "FOR";
+            case Node.DEF_STMT:
+                return "DEF";
+            case Node.FUNCTION_CALL:
+                return "CALL";
+            case Node.ABSTRACT:
+                return "ABSTRACT";
+            case Node.EMPTY_STMT:
+                return "EMPTY";
+            default:
+                return String.valueOf(kind);
+        }
+    }
+
+    private int encodeNode(final Node node) {
+        if (node == null) return NO_NODE;
+        int index = newNode(node);
+        switch (node.nodeType) {
+            case Node.NAME_NODE:
+                a[index] = constant(((NameNode) node).variable);
+                break;
+            case Node.INT_NODE:
+                a[index] = constant(((IntNode) node).value);
+                break;
+            case Node.FLOAT_NODE:
+                a[index] = constant(((FloatNode) node).value);
+                break;
+            case Node.BOOLEAN_STMT:
+                a[index] = constant(((BooleanStmt) node).value);
+                break;
+            case Node.LITERAL_NODE:
+                a[index] = constant(((LiteralNode) node).literal);
+                break;
+            case Node.NULL_STMT:
+            case Node.ABSTRACT:
+            case Node.BREAK_STMT:
+            case Node.CONTINUE_STMT:
+            case Node.EMPTY_STMT:
+                break;
+            case Node.ASSIGNMENT_NODE:
+                AssignmentNode an = (AssignmentNode) node;
+                ops[index] = an.varLevel;
+                a[index] = constant(((NameNode) an.left).variable);
+                setB(index, encodeNode(an.right));
+                break;
+            case Node.BINARY_OPERATOR:
+                BinaryOperator bo = (BinaryOperator) node;
+                ops[index] = bo.code;
+                setA(index, encodeNode(bo.left));
+                setB(index, encodeNode(bo.right));
+                break;
+            case Node.NOT_EXPR:
+            case Node.NEGATIVE_EXPR:
+            case Node.RETURN_STMT:
+                UnaryExpr ue = (UnaryExpr) node;
+                ops[index] = ue.code;
+                setA(index, encodeNode(ue.value));
+                break;
+            case Node.BLOCK_STMT:
+                BlockStmt bs = (BlockStmt) node;
+                int[] encoded = new int[bs.lines.size()];
+                for (int i = 0; i < encoded.length; i++) encoded[i] = encodeNode(bs.lines.get(i));
+                ops[index] = constant(bs.variableCount);
+                a[index] = addChildren(encoded);
+                b[index] = encoded.length;
+                break;
+            case Node.IF_STMT:
+                IfStmt is = (IfStmt) node;
+                ops[index] = releasedRanges(is.released, is.elseReleased);
+                setA(index, encodeNode(is.condition));
+                setB(index, encodeNode(is.doBlock));
+                setC(index, encodeNode(is.elseBlock));
+                break;
+            case Node.WHILE_STMT:
+            case Node.FOR_LOOP_STMT:
+                ConditionStmt cs = (ConditionStmt) node;
+                ops[index] = releasedRanges(cs.released, null);
+                setA(index, encodeNode(cs.condition));
+                setB(index, encodeNode(cs.doBlock));
+                c[index] = NO_NODE;
+                break;
+            case Node.DEF_STMT:
+                DefStmt ds = (DefStmt) node;
+                ds.resolvedBody();
+                ops[index] = constant(ds.variableCount);
+                a[index] = constant(ds.name.variable);
+                setB(index, encodeNode(ds.params));
+                setC(index, encodeNode(ds.body));
+                break;
+            case Node.FUNCTION_CALL:
+                FunctionCall fc = (FunctionCall) node;
+                ops[index] = constant(fc.name.variable);
+                setA(index, encodeNode(fc.arguments));
+                c[index] = constant(fc.name.name);
+                break;
+            default:
+                throw new SplException(String.format("Cannot encode %s, in file '%s', at line %d",
+                        node, node.position.getFileName(), node.position.getLineNumber()));
+        }
+        return index;
+    }
+
+    // Encoding a child may reallocate the arrays, so child indices are stored only after it returns.
+
+    private void setA(final int node, final int child) {
+        a[node] = child;
+    }
+
+    private void setB(final int node, final int child) {
+        b[node] = child;
+    }
+
+    private void setC(final int node, final int child) {
+        c[node] = child;
+    }
+
+    /**
+     * Adds the ranges as <code>{from, to, elseFrom, elseTo}</code>, with empty ranges as zeros.
+     */
+    private int releasedRanges(final int[] range, final int[] elseRange) {
+        boolean clears = ConditionStmt.clears(range);
+        boolean elseClears = ConditionStmt.clears(elseRange);
+        if (!clears && !elseClears) return NO_NODE;
+        return constant(new int[]{clears ? range[0] : 0, clears ? range[1] : 0,
+                elseClears ? elseRange[0] : 0, elseClears ? elseRange[1] : 0});
+    }
+
+    private int newNode(final Node node) {
+        if (nodeCount == kinds.length) {
+            int capacity = nodeCount * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            ops = Arrays.copyOf(ops, capacity);
+            a = Arrays.copyOf(a, capacity);
+            b = Arrays.copyOf(b, capacity);
+            c = Arrays.copyOf(c, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        int index = nodeCount++;
+        kinds[index] = node.nodeType;
+        lines[index] = positionIndex(node.position);
+        return index;
+    }
+
+    private int positionIndex(final Position position) {
+        int last = positionList.size() - 1;
+        if (last >= 0 && positionList.get(last) == position) return last;
+        positionList.add(position);
+        return last + 1;
+    }
+
+    private int addChildren(final int[] nodes) {
+        if (childCount + nodes.length > children.length) {
+            children = Arrays.copyOf(children, Math.max(children.length * 2, childCount + nodes.length));
+        }
+        int start = childCount;
+        System.arraycopy(nodes, 0, children, start, nodes.length);
+        childCount += nodes.length;
+        return start;
+    }
+
+    /**
+     * Adds a constant, sharing equal values. Mutable pool entries such as variables are shared by identity.
+     */
+    private int constant(final Object value) {
+        Object key = value instanceof Long || value instanceof Double || value instanceof Boolean ||
+                value instanceof String ? value : new IdentityKey(value);
+        Integer found = constantIndex.get(key);
+        if (found != null) return found;
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndex.put(key, constantCount);
+        return constantCount++;
+    }
+
+    private static class IdentityKey {
+
+        private final Object value;
+
+        private IdentityKey(final Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof IdentityKey && ((IdentityKey) obj).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+}
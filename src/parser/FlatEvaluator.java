@@ -0,0 +1,230 @@
+package parser;
+
+import interpreter.Environment;
+import interpreter.Function;
+import interpreter.ParameterPair;
+import interpreter.SplException;
+import interpreter.Variable;
+import interpreter.VariableCount;
+import tokenizer.Position;
+import tokenizer.TokenLib;
+
+/**
+ * Evaluates a {@link FlatAst} by switching on node kinds. Each case follows the <code>evaluate</code> method of
+ * the matching {@link Node} class.
+ */
+class FlatEvaluator {
+
+    private final FlatAst ast;
+
+    private final int[] kinds;
+    private final int[] ops;
+    private final int[] a;
+    private final int[] b;
+    private final int[] c;
+    private final int[] children;
+    private final Object[] constants;
+
+    FlatEvaluator(final FlatAst ast) {
+        this.ast = ast;
+        this.kinds = ast.kinds;
+        this.ops = ast.ops;
+        this.a = ast.a;
+        this.b = ast.b;
+        this.c = ast.c;
+        this.children = ast.children;
+        this.constants = ast.constants;
+    }
+
+    Object evaluate(final int node, final Environment env) {
+        switch (kinds[node]) {
+            case Node.INT_NODE:
+            case Node.FLOAT_NODE:
+            case Node.BOOLEAN_STMT:
+            case Node.LITERAL_NODE:
+                return constants[a[node]];
+            case Node.NAME_NODE:
+                return env.get((Variable) constants[a[node]], ast.position(node));
+            case Node.NULL_STMT:
+                return Environment.NULL_POINTER;
+            case Node.ABSTRACT:
+                throw new SplException("Method not implemented.");
+            case Node.BREAK_STMT:
+                env.breakLoop();
+                return null;
+            case Node.CONTINUE_STMT:
+                env.pause();
+                return null;
+            case Node.ASSIGNMENT_NODE:
+                return assign(node, env);
+            case Node.BINARY_OPERATOR:
+                return binary(node, env);
+            case Node.NOT_EXPR:
+            case Node.NEGATIVE_EXPR:
+            case Node.RETURN_STMT:
+                return null;
+            case Node.BLOCK_STMT:
+                return block(node, env);
+            case Node.IF_STMT:
+                return ifStmt(node, env);
+            case Node.WHILE_STMT:
+                return whileStmt(node, env);
+            case Node.FOR_LOOP_STMT:
+                return forLoop(node, env);
+            case Node.DEF_STMT:
+                return def(node, env);
+            case Node.FUNCTION_CALL:
+                return call(node, env);
+            case Node.EMPTY_STMT:
+                return null;
+            default:
+                Position pos = ast.position(node);
+                throw new SplException(String.format("Unknown node kind %d, in file '%s', at line %d",
+                        kinds[node], pos.getFileName(), pos.getLineNumber()));
+        }
+    }
+
+    private Object assign(final int node, final Environment env) {
+        Variable variable = (Variable) constants[a[node]];
+        Object value = evaluate(b[node], env);
+        switch (ops[node]) {
+            case Parser.ASSIGN:
+                env.assign(variable, value, ast.position(node));
+                break;
+            case Parser.CONST:
+                break;
+            case Parser.VAR:
+                env.defineVar(variable, value, ast.position(node));
+                break;
+            default:
+                throw new SplException("Unknown variable level");
+        }
+        return value;
+    }
+
+    private Object binary(final int node, final Environment env) {
+        int code = ops[node];
+        Object left = evaluate(a[node], env);
+        if (TokenLib.isLazy(code)) return null;
+        Object right = evaluate(b[node], env);
+        if (left instanceof Long) {
+            return Arithmetic.arithmetic((Long) left, right, code);
+        } else if (left instanceof Double) {
+            return Arithmetic.arithmetic((Double) left, right, code);
+        } else {
+            throw new SplException("Unsupported type for arithmetic");
+        }
+    }
+
+    private Object block(final int node, final Environment env) {
+        int start = a[node];
+        int end = start + b[node];
+        Object result = null;
+        for (int i = start; i < end; i++) {
+            result = evaluate(children[i], env);
+        }
+        return result;
+    }
+
+    private Object ifStmt(final int node, final Environment env) {
+        if ((Boolean) evaluate(a[node], env)) {
+            return clear(node, env, 0, evaluate(b[node], env));
+        } else if (c[node] != FlatAst.NO_NODE) {
+            return clear(node, env, 2, evaluate(c[node], env));
+        } else return null;
+    }
+
+    private Object whileStmt(final int node, final Environment env) {
+        int condition = a[node];
+        int body = b[node];
+        Object result = null;
+        while (!env.broken && (Boolean) evaluate(condition, env)) {
+            result = evaluate(body, env);
+            env.resume();
+        }
+        env.broken = false;
+        return clear(node, env, 0, result);
+    }
+
+    private Object forLoop(final int node, final Environment env) {
+        int condition = a[node];
+        if (b[condition] != 3) return null;  // for-each loops are not implemented
+
+        int first = a[condition];
+        int start = children[first];
+        int end = children[first + 1];
+        int step = children[first + 2];
+        int body = b[node];
+        Object result = evaluate(start, env);
+        while (!env.broken && (Boolean) evaluate(end, env)) {
+            result = evaluate(body, env);
+            env.resume();
+            evaluate(step, env);
+        }
+        env.broken = false;
+        return clear(node, env, 0, result);
+    }
+
+    /**
+     * Clears the released range of <code>node</code> starting at <code>at</code>, 0 for the body and 2 for
+     * the else block.
+     */
+    private Object clear(final int node, final Environment env, final int at, final Object result) {
+        if (ops[node] != FlatAst.NO_NODE) {
+            int[] ranges = (int[]) constants[ops[node]];
+            env.clearSlots(ranges[at], ranges[at + 1]);
+        }
+        return result;
+    }
+
+    private Object def(final int node, final Environment env) {
+        Position pos = ast.position(node);
+        Function function = new Function(pos, env, (VariableCount) constants[ops[node]]);
+
+        int params = b[node];
+        int first = a[params];
+        ParameterPair[] pairs = new ParameterPair[b[params]];
+        for (int i = 0; i < pairs.length; i++) {
+            int param = children[first + i];
+            if (kinds[param] == Node.NAME_NODE) {
+                pairs[i] = new ParameterPair((Variable) constants[a[param]], null);
+            } else if (kinds[param] == Node.ASSIGNMENT_NODE) {
+                Object value = evaluate(b[param], env);
+                pairs[i] = new ParameterPair((Variable) constants[a[param]], value);
+            } else {
+                throw new SplException(String.format(
+                        "Unexpected syntax in function declaration, in file '%s', at line %d",
+                        pos.getFileName(), pos.getLineNumber()));
+            }
+        }
+
+        function.params = pairs;
+        function.entry = c[node];
+
+        env.defineVar((Variable) constants[a[node]], function, pos);
+        return function;
+    }
+
+    private Object call(final int node, final Environment env) {
+        Position pos = ast.position(node);
+        Function function = (Function) env.get((Variable) constants[ops[node]], pos);
+        Environment callScope = function.newCallScope(env);
+        int arguments = a[node];
+        int first = a[arguments];
+        int argCount = b[arguments];
+        for (int i = 0; i < function.params.length; i++) {
+            Object arg;
+            if (i < argCount) {
+                arg = evaluate(children[first + i], env);
+            } else {
+                arg = function.params[i].defaultValue;
+                if (arg == null) {
+                    throw new SplException(String.format("Missing argument(s) in function '%s'",
+                            constants[c[node]]));
+                }
+            }
+            callScope.defineVar(function.params[i].variable, arg, pos);
+        }
+        return evaluate(function.entry, callScope);
+    }
+}
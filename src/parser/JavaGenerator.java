@@ -0,0 +1,416 @@
+package parser;
+
+import interpreter.SplException;
+import interpreter.Variable;
+import tokenizer.Position;
+import tokenizer.TokenLib;
+
+import java.util.ArrayList;
+
+/**
+ * Translates a looked up tree into the source of a Java class that runs the script, for {@link AotCompiler}.
+ * <p>
+ * The script becomes the method <code>run</code> and every function definition a method of its own. Frames are
+ * {@link runtime.Frame}s whose slots are those of the interpreter, so each name becomes an array access found by
+ * its scope distance and index. Each node becomes a Java expression where it can, and statements into temporaries
+ * <code>t0</code>, <code>t1</code>, ... where it cannot. Values are boxed as in the interpreter and operators go
+ * through {@link Arithmetic}, so results and errors are the same; assignments yield their value, as on the flat
+ * engine.
+ * <p>
+ * Closures converted to cells are not supported, so the tree must be parsed without them.
+ */
+public class JavaGenerator {
+
+    /**
+     * Length of generated source after which the lines of a body go on in another method.
+     */
+    private final static int PART_SIZE = 8000;
+
+    private final String className;
+
+    private final StringBuilder methods = new StringBuilder();
+
+    private final ArrayList<DefStmt> pendingDefs = new ArrayList<>();
+
+    /**
+     * Body of the method being generated.
+     */
+    private StringBuilder out;
+
+    private String indent;
+
+    private int temps;
+
+    private JavaGenerator(final String className) {
+        this.className = className;
+    }
+
+    public static String generate(final BlockStmt root, final String className, final String fileName) {
+        JavaGenerator generator = new JavaGenerator(className);
+        generator.method("run", root);
+        for (int i = 0; i < generator.pendingDefs.size(); i++) {
+            generator.method("f" + i, generator.pendingDefs.get(i).body);
+        }
+        return "// Compiled from " + fileName.replace('\n', ' ') + "\n\n" +
+                "import runtime.Frame;\n" +
+                "import runtime.Ops;\n" +
+                "import runtime.SplFunction;\n\n" +
+                "public final class " + className + " {\n\n" +
+                "    public static void main(String[] args) {\n" +
+                "        System.out.println(run(new Frame(" + root.getVariableCount().getVarCount() + ", null)));\n" +
+                "    }\n" +
+                generator.methods +
+                "}\n";
+    }
+
+    /**
+     * Generates the method of a body. The lines of a long body are split into methods called in turn, to keep
+     * each method small enough for the JVM to compile.
+     */
+    private void method(final String name, final BlockStmt body) {
+        StringBuilder calls = new StringBuilder();
+        int parts = 0;
+        out = new StringBuilder();
+        indent = "        ";
+        temps = 0;
+        int lineCount = body.lineCount();
+        for (int i = 0; i < lineCount - 1; i++) {
+            statement(body.getLine(i));
+            if (out.length() > PART_SIZE) {
+                String part = name + "_" + parts++;
+                methods.append("\n    static void ").append(part).append("(Frame frame) {\n").append(out)
+                        .append("    }\n");
+                calls.append(indent).append(part).append("(frame);\n");
+                out = new StringBuilder();
+            }
+        }
+        line("return " + (lineCount == 0 ? "null" : expr(body.getLine(lineCount - 1))) + ";");
+        methods.append("\n    static Object ").append(name).append("(Frame frame) {\n").append(calls).append(out)
+                .append("    }\n");
+    }
+
+    /**
+     * Generates the statements a node needs and returns the expression of its value.
+     */
+    private String expr(final Node node) {
+        switch (node.nodeType) {
+            case Node.INT_NODE:
+                return "Long.valueOf(" + ((IntNode) node).value + "L)";
+            case Node.FLOAT_NODE:
+                return doubleLiteral(((FloatNode) node).value);
+            case Node.BOOLEAN_STMT:
+                return ((BooleanStmt) node).value ? "Boolean.TRUE" : "Boolean.FALSE";
+            case Node.LITERAL_NODE:
+                return quote(((LiteralNode) node).literal);
+            case Node.NULL_STMT:
+                return "Ops.NULL";
+            case Node.NAME_NODE:
+                return read((NameNode) node);
+            case Node.ABSTRACT:
+                return "Ops.notImplemented()";
+            case Node.BREAK_STMT:
+                line("frame.broken = true;");
+                return "null";
+            case Node.CONTINUE_STMT:
+            case Node.NOT_EXPR:
+            case Node.NEGATIVE_EXPR:
+            case Node.RETURN_STMT:
+            case Node.EMPTY_STMT:
+                return "null";
+            case Node.ASSIGNMENT_NODE:
+                return assign((AssignmentNode) node);
+            case Node.BINARY_OPERATOR:
+                if (node instanceof BinaryOperator) return binary((BinaryOperator) node);
+                break;
+            case Node.BLOCK_STMT:
+                return block((BlockStmt) node);
+            case Node.IF_STMT:
+                return ifStmt((IfStmt) node);
+            case Node.WHILE_STMT:
+                return whileStmt((WhileStmt) node);
+            case Node.FOR_LOOP_STMT:
+                return forLoop((ForLoopStmt) node);
+            case Node.DEF_STMT:
+                return def((DefStmt) node);
+            case Node.FUNCTION_CALL:
+                return call((FunctionCall) node);
+        }
+        throw unsupported(node, node.toString());
+    }
+
+    /**
+     * Generates a node whose value is not used.
+     */
+    private void statement(final Node node) {
+        String value = expr(node);
+        if (!isConstant(value) && value.endsWith(")")) line(value + ";");
+    }
+
+    private String read(final NameNode node) {
+        Variable variable = node.variable;
+        Position pos = node.position;
+        if (variable.scopeDistance == -1) {
+            return "Ops.undefined(" + quote(node.name) + ", " + quote(pos.getFileName()) + ", " +
+                    pos.getLineNumber() + ")";
+        } else if (variable.kind == Variable.GLOBAL) {
+            return "Ops.global(frame, " + variable.index + ", " + quote(node.name) + ", " +
+                    quote(pos.getFileName()) + ", " + pos.getLineNumber() + ")";
+        }
+        checkLocal(variable, node);
+        return frame(variable.scopeDistance) + ".slots[" + variable.index + "]";
+    }
+
+    private String assign(final AssignmentNode an) {
+        String value = stable(expr(an.right));
+        NameNode name = (NameNode) an.left;
+        Variable variable = name.variable;
+        switch (an.varLevel) {
+            case Parser.ASSIGN:
+                if (variable.scopeDistance == -1) {
+                    line("Ops.undefined(" + quote(name.name) + ", " + quote(an.position.getFileName()) + ", " +
+                            an.position.getLineNumber() + ");");
+                } else if (variable.kind == Variable.GLOBAL) {
+                    line("frame.global.slots[" + variable.index + "] = " + value + ";");
+                } else {
+                    checkLocal(variable, name);
+                    line(frame(variable.scopeDistance) + ".slots[" + variable.index + "] = " + value + ";");
+                }
+                break;
+            case Parser.CONST:
+                break;
+            case Parser.VAR:
+                if (variable.kind != Variable.GLOBAL) checkLocal(variable, name);
+                line("frame.slots[" + variable.index + "] = " + value + ";");
+                break;
+            default:
+                throw new SplException("Unknown variable level");
+        }
+        return value;
+    }
+
+    private String binary(final BinaryOperator bo) {
+        if (TokenLib.isLazy(bo.code)) {  // evaluates as the interpreter does
+            statement(bo.left);
+            return "null";
+        }
+        String[] values = operands(bo.left, bo.right);
+        return "Ops.binary(" + values[0] + ", " + values[1] + ", " + bo.code + ")";
+    }
+
+    private String block(final BlockStmt bs) {
+        int lineCount = bs.lineCount();
+        if (lineCount == 0) return "null";
+        for (int i = 0; i < lineCount - 1; i++) statement(bs.getLine(i));
+        return expr(bs.getLine(lineCount - 1));
+    }
+
+    private String ifStmt(final IfStmt is) {
+        String result = temp();
+        line("Object " + result + ";");
+        line("if (Ops.isTrue(" + expr(is.condition) + ")) {");
+        open();
+        line(result + " = " + expr(is.doBlock) + ";");
+        clear(is.released);
+        close();
+        line("} else {");
+        open();
+        if (is.elseBlock != null) {
+            line(result + " = " + expr(is.elseBlock) + ";");
+            clear(is.elseReleased);
+        } else {
+            line(result + " = null;");
+        }
+        close();
+        line("}");
+        return result;
+    }
+
+    private String whileStmt(final WhileStmt ws) {
+        String result = temp();
+        line("Object " + result + " = null;");
+        loop(result, ws.condition, ws.doBlock, null);
+        clear(ws.released);
+        return result;
+    }
+
+    private String forLoop(final ForLoopStmt fs) {
+        if (fs.condition.lineCount() != 3) return "null";  // for-each loops are not implemented
+
+        String result = temp();
+        line("Object " + result + " = " + expr(fs.condition.getLine(0)) + ";");
+        loop(result, fs.condition.getLine(1), fs.doBlock, fs.condition.getLine(2));
+        clear(fs.released);
+        return result;
+    }
+
+    private void loop(final String result, final Node condition, final Node body, final Node step) {
+        line("while (!frame.broken) {");
+        open();
+        line("if (!Ops.isTrue(" + expr(condition) + ")) break;");
+        line(result + " = " + expr(body) + ";");
+        if (step != null) statement(step);
+        close();
+        line("}");
+        line("frame.broken = false;");
+    }
+
+    private void clear(final int[] released) {
+        if (ConditionStmt.clears(released)) line("Ops.clear(frame, " + released[0] + ", " + released[1] + ");");
+    }
+
+    private String def(final DefStmt ds) {
+        ds.resolvedBody();
+        String method = "f" + pendingDefs.size();
+        pendingDefs.add(ds);
+
+        int paramCount = ds.params.lineCount();
+        StringBuilder slots = new StringBuilder();
+        ArrayList<Node> defaultNodes = new ArrayList<>();
+        boolean[] hasDefault = new boolean[paramCount];
+        for (int i = 0; i < paramCount; i++) {
+            Node param = ds.params.getLine(i);
+            NameNode name;
+            if (param instanceof NameNode) {
+                name = (NameNode) param;
+            } else if (param instanceof AssignmentNode) {
+                AssignmentNode an = (AssignmentNode) param;
+                name = (NameNode) an.left;
+                defaultNodes.add(an.right);
+                hasDefault[i] = true;
+            } else {
+                throw new SplException(String.format(
+                        "Unexpected syntax in function declaration, in file '%s', at line %d",
+                        ds.position.getFileName(), ds.position.getLineNumber()));
+            }
+            if (name.variable == null) throw unsupported(param, "parameter " + name.name);
+            checkLocal(name.variable, name);
+            if (i > 0) slots.append(", ");
+            slots.append(name.variable.index);
+        }
+        String[] values = operands(defaultNodes.toArray(new Node[0]));
+        StringBuilder defaults = new StringBuilder();
+        for (int i = 0, d = 0; i < paramCount; i++) {
+            if (i > 0) defaults.append(", ");
+            defaults.append(hasDefault[i] ? values[d++] : "null");
+        }
+
+        String function = temp();
+        line("Object " + function + " = new SplFunction(" + quote(ds.name.name) + ", frame, " +
+                ds.variableCount.getVarCount() + ", new int[]{" + slots + "}, new Object[]{" + defaults + "}, " +
+                className + "::" + method + ");");
+        line("frame.slots[" + ds.name.variable.index + "] = " + function + ";");
+        return function;
+    }
+
+    private String call(final FunctionCall fc) {
+        int argCount = fc.arguments.lineCount();
+        Node[] nodes = new Node[argCount + 1];
+        nodes[0] = fc.name;
+        for (int i = 0; i < argCount; i++) nodes[i + 1] = fc.arguments.getLine(i);
+        String[] values = operands(nodes);
+        StringBuilder args = new StringBuilder();
+        for (int i = 1; i < values.length; i++) {
+            if (i > 1) args.append(", ");
+            args.append(values[i]);
+        }
+        return "Ops.call(" + values[0] + ", new Object[]{" + args + "})";
+    }
+
+    /**
+     * Generates operands that are evaluated in order. An operand whose value could change while a later one
+     * runs its statements is first stored in a temporary.
+     */
+    private String[] operands(final Node... nodes) {
+        String[] values = new String[nodes.length];
+        int[] ends = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            values[i] = expr(nodes[i]);
+            ends[i] = out.length();
+        }
+        int end = out.length();
+        for (int i = nodes.length - 2; i >= 0; i--) {
+            if (ends[i] < end && !isConstant(values[i]) && !isTemp(values[i])) {
+                String temp = temp();
+                out.insert(ends[i], indent + "Object " + temp + " = " + values[i] + ";\n");
+                values[i] = temp;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns an expression that keeps its value, storing it in a temporary if needed.
+     */
+    private String stable(final String value) {
+        if (isConstant(value) || isTemp(value)) return value;
+        String temp = temp();
+        line("Object " + temp + " = " + value + ";");
+        return temp;
+    }
+
+    private static boolean isConstant(final String value) {
+        return value.equals("null") || value.equals("Ops.NULL") || value.startsWith("\"") ||
+                value.startsWith("Long.valueOf(") || value.startsWith("Double.valueOf(") ||
+                value.startsWith("Boolean.");
+    }
+
+    private static boolean isTemp(final String value) {
+        return value.matches("t\\d+");
+    }
+
+    private static void checkLocal(final Variable variable, final Node node) {
+        if (variable.kind != Variable.LOCAL) throw unsupported(node, "closure variable " + node);
+    }
+
+    private static SplException unsupported(final Node node, final String what) {
+        return new SplException(String.format("Cannot compile %s to Java, in file '%s', at line %d",
+                what, node.position.getFileName(), node.position.getLineNumber()));
+    }
+
+    private static String frame(final int scopeDistance) {
+        StringBuilder sb = new StringBuilder("frame");
+        for (int i = 0; i < scopeDistance; i++) sb.append(".outer");
+        return sb.toString();
+    }
+
+    private static String doubleLiteral(final double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "Double.valueOf(Double.longBitsToDouble(0x" + Long.toHexString(Double.doubleToRawLongBits(value)) +
+                    "L))";
+        }
+        return "Double.valueOf(" + value + ")";
+    }
+
+    private static String quote(final String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\%03o", (int) c));  // a unicode escape of a line break would end the line
+            } else if (c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private String temp() {
+        return "t" + temps++;
+    }
+
+    private void line(final String code) {
+        out.append(indent).append(code).append('\n');
+    }
+
+    private void open() {
+        indent += "    ";
+    }
+
+    private void close() {
+        indent = indent.substring(4);
+    }
+}
@@ -0,0 +1,9 @@
+package parser;
+
+/**
+ * A function body compiled by {@link JitCompiler}, run on arguments that are all ints.
+ */
+interface JitCode {
+
+    Object run(long[] args);
+}
@@ -0,0 +1,645 @@
+package parser;
+
+import interpreter.Function;
+import interpreter.HeapVariable;
+import interpreter.SplException;
+import interpreter.Variable;
+import tokenizer.TokenLib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Compiles hot functions of the tree engine to JVM bytecode, loaded as hidden classes so that the JVM optimizes
+ * them like Java code.
+ * <p>
+ * Each call site counts its calls, and once it passes the threshold the body of the function it calls is
+ * compiled, if it can be. A body can be compiled when all its variables are ints in slots of its own frame: it
+ * reads no names of other frames, calls no functions and uses only int arithmetic, comparisons, conditions and
+ * loops without <code>break</code> or <code>continue</code>. The frame slots become JVM locals, so the compiled
+ * code never touches an {@link interpreter.Environment}. Calls whose arguments are not all ints run the tree as
+ * before.
+ * <p>
+ * Bodies that are still waiting for lazy parsing when {@link #prepare} runs are not compiled.
+ */
+public class JitCompiler {
+
+    private final static MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final int threshold;
+
+    /**
+     * Compiled code of each body, or <code>null</code> for bodies that cannot be compiled.
+     */
+    private final IdentityHashMap<BlockStmt, JitCode> compiled = new IdentityHashMap<>();
+
+    public JitCompiler(final int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Lets every call site of a looked up tree count its calls.
+     */
+    public BlockStmt prepare(final BlockStmt root) {
+        FunctionCall.forEach(root, fc -> fc.jit = this);
+        return root;
+    }
+
+    /**
+     * Counts a call of <code>function</code> at <code>site</code> and returns its compiled body, or
+     * <code>null</code> while it is not hot or when it cannot be compiled.
+     */
+    JitCode compiled(final FunctionCall site, final Function function) {
+        Entry entry = site.jitEntry;
+        if (entry != null && entry.body == function.body) return entry.code;
+        if (++site.calls < threshold) return null;
+        site.calls = 0;
+        entry = new Entry(function.body, compile(function));
+        site.jitEntry = entry;
+        return entry.code;
+    }
+
+    private synchronized JitCode compile(final Function function) {
+        if (compiled.containsKey(function.body)) return compiled.get(function.body);
+        JitCode code;
+        try {
+            code = load(new MethodCompiler(function).compile());
+        } catch (Unsupported e) {
+            code = null;
+        }
+        compiled.put(function.body, code);
+        return code;
+    }
+
+    private static JitCode load(final byte[] classFile) {
+        try {
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(classFile, true);
+            return (JitCode) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new SplException("Cannot load compiled function: " + e);
+        }
+    }
+
+    /**
+     * The compiled body a call site last saw, published in one write so that threads sharing the tree see a
+     * matching pair.
+     */
+    static class Entry {
+
+        final BlockStmt body;
+
+        final JitCode code;
+
+        Entry(final BlockStmt body, final JitCode code) {
+            this.body = body;
+            this.code = code;
+        }
+    }
+
+    /**
+     * Thrown when a body uses something the compiler does not handle.
+     */
+    private static class Unsupported extends RuntimeException {
+
+        private final static long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Compiles one function body into the <code>run</code> method of a class implementing {@link JitCode}.
+     * Slot <code>i</code> of the frame is held in JVM local <code>2 + 2 * i</code>.
+     */
+    private static class MethodCompiler {
+
+        private final static String CLASS_NAME = "parser/JitCompiled";
+        private final static String INTERFACE_NAME = "parser/JitCode";
+
+        private final static int ICONST_0 = 0x03;
+        private final static int LCONST_0 = 0x09;
+        private final static int LCONST_1 = 0x0a;
+        private final static int BIPUSH = 0x10;
+        private final static int SIPUSH = 0x11;
+        private final static int LDC2_W = 0x14;
+        private final static int LLOAD = 0x16;
+        private final static int ALOAD_0 = 0x2a;
+        private final static int ALOAD_1 = 0x2b;
+        private final static int LALOAD = 0x2f;
+        private final static int LSTORE = 0x37;
+        private final static int POP2 = 0x58;
+        private final static int LADD = 0x61;
+        private final static int LSUB = 0x65;
+        private final static int LMUL = 0x69;
+        private final static int LDIV = 0x6d;
+        private final static int LREM = 0x71;
+        private final static int LSHL = 0x79;
+        private final static int LSHR = 0x7b;
+        private final static int LAND = 0x7f;
+        private final static int LOR = 0x81;
+        private final static int LXOR = 0x83;
+        private final static int L2I = 0x88;
+        private final static int LCMP = 0x94;
+        private final static int IFEQ = 0x99;
+        private final static int IFNE = 0x9a;
+        private final static int IFLT = 0x9b;
+        private final static int IFGE = 0x9c;
+        private final static int IFGT = 0x9d;
+        private final static int IFLE = 0x9e;
+        private final static int GOTO = 0xa7;
+        private final static int ARETURN = 0xb0;
+        private final static int RETURN = 0xb1;
+        private final static int INVOKESPECIAL = 0xb7;
+        private final static int INVOKESTATIC = 0xb8;
+
+        private final Function function;
+
+        private final int variableCount;
+
+        private byte[] code = new byte[256];
+
+        private int length;
+
+        private int stack;
+
+        private int maxStack;
+
+        /**
+         * Slots that are certainly assigned where the code being compiled runs.
+         */
+        private BitSet defined = new BitSet();
+
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+
+        private final HashMap<String, Integer> poolIndex = new HashMap<>();
+
+        private int poolCount = 1;
+
+        MethodCompiler(final Function function) {
+            this.function = function;
+            this.variableCount = function.variableCount.getVarCount();
+        }
+
+        byte[] compile() {
+            if (2 + 2 * variableCount > 255) throw new Unsupported();
+            for (int i = 0; i < function.params.length; i++) {
+                Variable param = function.params[i].variable;
+                if (!isSlot(param)) throw new Unsupported();
+                op(ALOAD_1, 1);
+                pushInt(i);
+                op(LALOAD, -1 + 1);
+                local(LSTORE, param.index, -2);
+                defined.set(param.index);
+            }
+            BlockStmt body = function.body;
+            int last = body.lineCount() - 1;
+            if (last < 0) throw new Unsupported();
+            for (int i = 0; i < last; i++) statement(body.getLine(i));
+            value(body.getLine(last));
+            invokeStatic("java/lang/Long", "valueOf", "(J)Ljava/lang/Long;", -2 + 1);
+            op(ARETURN, -1);
+            if (length > Short.MAX_VALUE) throw new Unsupported();
+            return classFile();
+        }
+
+        private void statement(final Node node) {
+            if (node instanceof EmptyStmt) {
+                return;
+            } else if (node instanceof BlockStmt && !(node instanceof LazyBlock)) {
+                for (Node line : ((BlockStmt) node).lines) statement(line);
+            } else if (node instanceof AssignmentNode) {
+                AssignmentNode an = (AssignmentNode) node;
+                value(an.right);
+                if (an.varLevel == Parser.CONST) {
+                    op(POP2, -2);
+                } else {
+                    Variable variable = ((NameNode) an.left).variable;
+                    if (!isSlot(variable)) throw new Unsupported();
+                    local(LSTORE, variable.index, -2);
+                    defined.set(variable.index);
+                }
+            } else if (node instanceof IfStmt) {
+                IfStmt is = (IfStmt) node;
+                int jumpElse = jumpIfFalse(is);
+                BitSet outer = (BitSet) defined.clone();
+                statement(is.doBlock);
+                defined = (BitSet) outer.clone();
+                if (is.elseBlock != null) {
+                    int jumpEnd = jump(GOTO, 0);
+                    patch(jumpElse);
+                    statement(is.elseBlock);
+                    patch(jumpEnd);
+                } else {
+                    patch(jumpElse);
+                }
+                defined = outer;
+            } else if (node instanceof WhileStmt) {
+                WhileStmt ws = (WhileStmt) node;
+                BitSet outer = (BitSet) defined.clone();
+                int top = length;
+                int jumpExit = jumpIfFalse(ws);
+                statement(ws.doBlock);
+                jumpTo(top);
+                patch(jumpExit);
+                defined = outer;
+            } else if (node instanceof ForLoopStmt) {
+                ForLoopStmt fs = (ForLoopStmt) node;
+                if (fs.condition.lineCount() != 3) throw new Unsupported();
+                BitSet outer = (BitSet) defined.clone();
+                statement(fs.condition.getLine(0));
+                BitSet title = (BitSet) defined.clone();
+                int top = length;
+                int jumpExit = jumpIfFalse(fs.condition.getLine(1));
+                statement(fs.doBlock);
+                defined = title;
+                statement(fs.condition.getLine(2));
+                jumpTo(top);
+                patch(jumpExit);
+                defined = outer;
+            } else if (isComparison(node)) {
+                value(left(node));
+                value(right(node));
+                op(POP2, -2);
+                op(POP2, -2);
+            } else {
+                value(node);
+                op(POP2, -2);
+            }
+        }
+
+        /**
+         * Compiles an expression that leaves an int on the stack.
+         */
+        private void value(final Node node) {
+            if (node instanceof IntNode) {
+                pushLong(((IntNode) node).value);
+            } else if (node instanceof NameNode) {
+                Variable variable = ((NameNode) node).variable;
+                if (!isSlot(variable) || !defined.get(variable.index)) throw new Unsupported();
+                local(LLOAD, variable.index, 2);
+            } else if (isArithmetic(node)) {
+                value(left(node));
+                value(right(node));
+                int code = operatorCode(node);
+                if (code == TokenLib.LSHIFT || code == TokenLib.RSHIFT) op(L2I, -1);
+                op(arithmeticOp(code), code == TokenLib.LSHIFT || code == TokenLib.RSHIFT ? -1 : -2);
+            } else if (node instanceof IfStmt && ((IfStmt) node).elseBlock != null) {
+                IfStmt is = (IfStmt) node;
+                int jumpElse = jumpIfFalse(is);
+                BitSet outer = (BitSet) defined.clone();
+                value(is.doBlock);
+                defined = (BitSet) outer.clone();
+                int jumpEnd = jump(GOTO, 0);
+                stack -= 2;
+                patch(jumpElse);
+                value(is.elseBlock);
+                patch(jumpEnd);
+                defined = outer;
+            } else if (node instanceof BlockStmt && !(node instanceof LazyBlock) &&
+                    ((BlockStmt) node).lineCount() > 0) {
+                BlockStmt bs = (BlockStmt) node;
+                int last = bs.lineCount() - 1;
+                for (int i = 0; i < last; i++) statement(bs.getLine(i));
+                value(bs.getLine(last));
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        private int jumpIfFalse(final ConditionStmt cs) {
+            return jumpIfFalse(cs.test != null ? cs.test : cs.condition);
+        }
+
+        /**
+         * Compiles a condition and returns the jump to patch with the target for false, or -1 if it is always
+         * true.
+         */
+        private int jumpIfFalse(final Node node) {
+            if (node instanceof BlockStmt && !(node instanceof LazyBlock) && ((BlockStmt) node).lineCount() > 0) {
+                BlockStmt bs = (BlockStmt) node;
+                int last = bs.lineCount() - 1;
+                for (int i = 0; i < last; i++) statement(bs.getLine(i));
+                return jumpIfFalse(bs.getLine(last));
+            } else if (node instanceof BooleanStmt) {
+                return ((BooleanStmt) node).value ? -1 : jump(GOTO, 0);
+            } else if (isComparison(node)) {
+                value(left(node));
+                value(right(node));
+                op(LCMP, -3);
+                return jump(negatedBranch(operatorCode(node)), -1);
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        private boolean isSlot(final Variable variable) {
+            return variable != null && variable.kind == Variable.LOCAL && variable.scopeDistance == 0 &&
+                    !(variable instanceof HeapVariable) && variable.index < variableCount;
+        }
+
+        private static int operatorCode(final Node node) {
+            if (node instanceof BinaryOperator) {
+                BinaryOperator bo = (BinaryOperator) node;
+                return bo.assignment ? -1 : bo.code;
+            } else if (node instanceof SpecializedBinary) {
+                return ((SpecializedBinary) node).generic.code;
+            } else {
+                return -1;
+            }
+        }
+
+        private static Node left(final Node node) {
+            return node instanceof BinaryOperator ? ((BinaryOperator) node).left : ((SpecializedBinary) node).left;
+        }
+
+        private static Node right(final Node node) {
+            return node instanceof BinaryOperator ? ((BinaryOperator) node).right : ((SpecializedBinary) node).right;
+        }
+
+        private static boolean isArithmetic(final Node node) {
+            switch (operatorCode(node)) {
+                case TokenLib.ADD:
+                case TokenLib.SUB:
+                case TokenLib.MUL:
+                case TokenLib.DIV:
+                case TokenLib.MOD:
+                case TokenLib.BAND:
+                case TokenLib.XOR:
+                case TokenLib.BOR:
+                case TokenLib.LSHIFT:
+                case TokenLib.RSHIFT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static boolean isComparison(final Node node) {
+            int code = operatorCode(node);
+            return code >= TokenLib.LT && code <= TokenLib.NEQ;
+        }
+
+        private static int arithmeticOp(final int code) {
+            switch (code) {
+                case TokenLib.ADD:
+                    return LADD;
+                case TokenLib.SUB:
+                    return LSUB;
+                case TokenLib.MUL:
+                    return LMUL;
+                case TokenLib.DIV:
+                    return LDIV;
+                case TokenLib.MOD:
+                    return LREM;
+                case TokenLib.BAND:
+                    return LAND;
+                case TokenLib.XOR:
+                    return LXOR;
+                case TokenLib.BOR:
+                    return LOR;
+                case TokenLib.LSHIFT:
+                    return LSHL;
+                case TokenLib.RSHIFT:
+                    return LSHR;
+                default:
+                    throw new Unsupported();
+            }
+        }
+
+        /**
+         * The branch taken after <code>lcmp</code> when the comparison is false.
+         */
+        private static int negatedBranch(final int code) {
+            switch (code) {
+                case TokenLib.LT:
+                    return IFGE;
+                case TokenLib.GT:
+                    return IFLE;
+                case TokenLib.LE:
+                    return IFGT;
+                case TokenLib.GE:
+                    return IFLT;
+                case TokenLib.EQ:
+                    return IFNE;
+                case TokenLib.NEQ:
+                    return IFEQ;
+                default:
+                    throw new Unsupported();
+            }
+        }
+
+        // instructions
+
+        private void op(final int opcode, final int stackChange) {
+            put(opcode);
+            adjust(stackChange);
+        }
+
+        private void adjust(final int stackChange) {
+            stack += stackChange;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void local(final int opcode, final int slot, final int stackChange) {
+            op(opcode, stackChange);
+            put(2 + 2 * slot);
+        }
+
+        private void pushInt(final int value) {
+            if (value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                put(value);
+            } else {
+                op(SIPUSH, 1);
+                putShort(value);
+            }
+        }
+
+        private void pushLong(final long value) {
+            if (value == 0) {
+                op(LCONST_0, 2);
+            } else if (value == 1) {
+                op(LCONST_1, 2);
+            } else {
+                op(LDC2_W, 2);
+                putShort(longConstant(value));
+            }
+        }
+
+        private void invokeStatic(final String owner, final String name, final String descriptor,
+                                  final int stackChange) {
+            op(INVOKESTATIC, stackChange);
+            putShort(methodRef(owner, name, descriptor));
+        }
+
+        /**
+         * Emits a jump with its offset left to {@link #patch} and returns where it is.
+         */
+        private int jump(final int opcode, final int stackChange) {
+            int at = length;
+            op(opcode, stackChange);
+            putShort(0);
+            return at;
+        }
+
+        private void jumpTo(final int target) {
+            int at = length;
+            op(GOTO, 0);
+            putShort(target - at);
+        }
+
+        /**
+         * Points a jump to the next instruction. A jump of -1 is one that was never emitted.
+         */
+        private void patch(final int jump) {
+            if (jump < 0) return;
+            int offset = length - jump;
+            code[jump + 1] = (byte) (offset >> 8);
+            code[jump + 2] = (byte) offset;
+        }
+
+        private void put(final int b) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) b;
+        }
+
+        private void putShort(final int s) {
+            put(s >> 8);
+            put(s);
+        }
+
+        // class file
+
+        private byte[] classFile() {
+            int thisClass = classRef(CLASS_NAME);
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef(INTERFACE_NAME);
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int initName = utf8("<init>");
+            int initDescriptor = utf8("()V");
+            int runName = utf8("run");
+            int runDescriptor = utf8("([J)Ljava/lang/Object;");
+            int codeName = utf8("Code");
+            try {
+                pool.flush();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);  // old enough to be verified without stack map frames
+                out.writeShort(poolCount);
+                poolBytes.writeTo(out);
+                out.writeShort(0x0010 | 0x0020);  // final, super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(iface);
+                out.writeShort(0);
+                out.writeShort(2);
+
+                byte[] init = {ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+                        (byte) RETURN};
+                method(out, initName, initDescriptor, codeName, 1, 1, init, init.length);
+                method(out, runName, runDescriptor, codeName, maxStack, 2 + 2 * variableCount, code, length);
+
+                out.writeShort(0);
+                out.flush();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new SplException(e.toString());
+            }
+        }
+
+        private static void method(final DataOutputStream out, final int name, final int descriptor,
+                                   final int codeName, final int maxStack, final int maxLocals, final byte[] code,
+                                   final int length) throws IOException {
+            out.writeShort(0x0001);  // public
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        private int utf8(final String value) {
+            Integer found = poolIndex.get("U" + value);
+            if (found != null) return found;
+            try {
+                pool.writeByte(1);
+                pool.writeUTF(value);
+            } catch (IOException e) {
+                throw new SplException(e.toString());
+            }
+            poolIndex.put("U" + value, poolCount);
+            return poolCount++;
+        }
+
+        private int classRef(final String name) {
+            Integer found = poolIndex.get("C" + name);
+            if (found != null) return found;
+            int nameIndex = utf8(name);
+            try {
+                pool.writeByte(7);
+                pool.writeShort(nameIndex);
+            } catch (IOException e) {
+                throw new SplException(e.toString());
+            }
+            poolIndex.put("C" + name, poolCount);
+            return poolCount++;
+        }
+
+        private int methodRef(final String owner, final String name, final String descriptor) {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer found = poolIndex.get(key);
+            if (found != null) return found;
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            try {
+                pool.writeByte(12);
+                pool.writeShort(nameIndex);
+                pool.writeShort(descriptorIndex);
+                pool.writeByte(10);
+                pool.writeShort(ownerIndex);
+                pool.writeShort(poolCount);
+            } catch (IOException e) {
+                throw new SplException(e.toString());
+            }
+            poolCount += 2;
+            poolIndex.put(key, poolCount - 1);
+            return poolCount - 1;
+        }
+
+        private int longConstant(final long value) {
+            Integer found = poolIndex.get("J" + value);
+            if (found != null) return found;
+            try {
+                pool.writeByte(5);
+                pool.writeLong(value);
+            } catch (IOException e) {
+                throw new SplException(e.toString());
+            }
+            poolIndex.put("J" + value, poolCount);
+            poolCount += 2;  // a long takes two entries
+            return poolCount - 2;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package parser;
+
+import interpreter.EnvOptimizer;
+import interpreter.Environment;
+import interpreter.SplException;
+import tokenizer.LexerException;
+import tokenizer.Position;
+import tokenizer.TokenStream;
+
+/**
+ * A function body that has only been skipped by the parser. It is parsed and looked up in the scope of its
+ * function the first time it is needed.
+ */
+class LazyBlock extends BlockStmt {
+
+    private final TokenStream source;
+
+    /**
+     * Scope of the function parameters, captured when the enclosing tree is looked up.
+     */
+    private EnvOptimizer functionOptimizer;
+
+    private BlockStmt parsed;
+
+    LazyBlock(final Position position, final TokenStream source) {
+        super(position);
+
+        this.source = source;
+    }
+
+    @Override
+    public void lookUp(EnvOptimizer envOptimizer) {
+        functionOptimizer = envOptimizer;
+        envOptimizer.pinVisible();
+    }
+
+    /**
+     * Returns the parsed and looked up body, parsing it on the first call. Runs of a shared program may call
+     * the same function first at the same time, so only one of them parses it.
+     */
+    synchronized BlockStmt force() {
+        if (parsed == null) {
+            try {
+                Parser parser = new Parser(source);
+                parser.setLazy(true);
+                BlockStmt block = parser.build();
+                block.lookUp(functionOptimizer);
+                functionOptimizer.trimReleased();
+                parsed = block;
+            } catch (ParseException | LexerException e) {
+                throw new SplException(String.format("%s, in function body at line %d", e.getMessage(),
+                        position.getLineNumber()));
+            }
+        }
+        return parsed;
+    }
+
+    @Override
+    public Object evaluate(Environment env) {
+        return force().evaluate(env);
+    }
+
+    @Override
+    public String toString() {
+        return parsed == null ? "BlockStmt{ ... }" : parsed.toString();
+    }
+}
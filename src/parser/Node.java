@@ -6,11 +6,10 @@ import tokenizer.TokenLib;
 import util.Utility;
 
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 public abstract class Node {
 
-    static int indent = 0;
-
     public final static int MULTIPLIER = 1000;
 
     final static int INT_NODE = 1;
@@ -44,6 +43,7 @@ public abstract class Node {
     final static int TYPE_NODE = 29;
     final static int JUMP_NODE = 30;
     final static int UNDEFINED_NODE = 31;
+    final static int EMPTY_STMT = 32;
 
     Position position;
 
@@ -54,6 +54,36 @@ public abstract class Node {
     }
 
     public abstract Object evaluate(Environment env);
+
+    // Typed evaluation, for nodes whose value is expected to have one type. A node that can produce the value
+    // unboxed overrides these; a value of another type is thrown as an UnexpectedResult.
+
+    long evaluateLong(Environment env) {
+        return asLong(evaluate(env));
+    }
+
+    double evaluateDouble(Environment env) {
+        return asDouble(evaluate(env));
+    }
+
+    boolean evaluateBoolean(Environment env) {
+        return asBoolean(evaluate(env));
+    }
+
+    static long asLong(Object value) {
+        if (value instanceof Long) return (Long) value;
+        throw new UnexpectedResult(value);
+    }
+
+    static double asDouble(Object value) {
+        if (value instanceof Double) return (Double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    static boolean asBoolean(Object value) {
+        if (value instanceof Boolean) return (Boolean) value;
+        throw new UnexpectedResult(value);
+    }
 }
 
 abstract class LeafNode extends Node {
@@ -70,17 +100,26 @@ abstract class InternalNode extends Node {
     }
 
     public abstract void lookUp(EnvOptimizer envOptimizer);
+
+    /**
+     * Replaces a child node that specialized itself, see {@link Specializer}.
+     */
+    void replaceChild(Node child, Node replacement) {
+    }
 }
 
 class NameNode extends LeafNode {
 
+    int symbol;
+
     String name;
 
     Variable variable;
 
-    NameNode(final Position position, String name) {
+    NameNode(final Position position, final int symbol, final String name) {
         super(position);
 
+        this.symbol = symbol;
         this.name = name;
         nodeType = NAME_NODE;
     }
@@ -88,15 +127,15 @@ class NameNode extends LeafNode {
     void setVariable(int varLevel, EnvOptimizer envOptimizer) {
         switch (varLevel) {
             case Parser.ASSIGN:
-                variable = envOptimizer.get(name);
+                variable = envOptimizer.get(symbol, name);
                 break;
             case Parser.VAR:
-                variable = envOptimizer.addVar(name);
+                variable = envOptimizer.addVar(symbol);
                 break;
             case Parser.CONST:
                 break;
             case Parser.GET:
-                variable = envOptimizer.get(name);
+                variable = envOptimizer.get(symbol, name);
                 break;
             default:
                 throw new SplException("sss");
@@ -109,6 +148,11 @@ class NameNode extends LeafNode {
         return env.get(variable, position);
     }
 
+    @Override
+    long evaluateLong(Environment env) {
+        return env.getLong(variable, position);
+    }
+
     @Override
     public String toString() {
         return String.format("Name(%s)", name);
@@ -117,12 +161,19 @@ class NameNode extends LeafNode {
 
 class IntNode extends LeafNode {
 
-    long value;
+    final long value;
+
+    private final Long boxed;
 
     IntNode(final Position position, String numText) {
+        this(position, Long.parseLong(numText));
+    }
+
+    IntNode(final Position position, final long value) {
         super(position);
 
-        value = Long.valueOf(numText);
+        this.value = value;
+        this.boxed = value;
         nodeType = INT_NODE;
     }
 
@@ -133,23 +184,40 @@ class IntNode extends LeafNode {
 
     @Override
     public Object evaluate(Environment env) {
+        return boxed;
+    }
+
+    @Override
+    long evaluateLong(Environment env) {
         return value;
     }
 }
 
 class FloatNode extends LeafNode {
 
-    double value;
+    final double value;
+
+    private final Double boxed;
 
     FloatNode(final Position position, String numText) {
+        this(position, Double.parseDouble(numText));
+    }
+
+    FloatNode(final Position position, final double value) {
         super(position);
 
-        value = Double.valueOf(numText);
+        this.value = value;
+        this.boxed = value;
         nodeType = FLOAT_NODE;
     }
 
     @Override
     public Object evaluate(Environment env) {
+        return boxed;
+    }
+
+    @Override
+    double evaluateDouble(Environment env) {
         return value;
     }
 
@@ -161,7 +229,7 @@ class FloatNode extends LeafNode {
 
 class BooleanStmt extends LeafNode {
 
-    private boolean value;
+    boolean value;
 
     BooleanStmt(final Position position, final boolean stringValue) {
         super(position);
@@ -170,10 +238,20 @@ class BooleanStmt extends LeafNode {
         nodeType = BOOLEAN_STMT;
     }
 
+    @Override
+    public String toString() {
+        return String.format("Boolean(%b)", value);
+    }
+
     @Override
     public Object evaluate(Environment env) {
         return value;
     }
+
+    @Override
+    boolean evaluateBoolean(Environment env) {
+        return value;
+    }
 }
 
 class NullStmt extends LeafNode {
@@ -206,7 +284,7 @@ class AbstractStmt extends LeafNode {
 
 class LiteralNode extends LeafNode {
 
-    private String literal;
+    String literal;
 
     LiteralNode(final Position position, String literal) {
         super(position);
@@ -230,12 +308,14 @@ abstract class BinaryExpr extends InternalNode {
 
     protected Node left;
     protected Node right;
+    protected int code;
     protected String symbol;
 
-    BinaryExpr(final Position position, final String symbol) {
+    BinaryExpr(final Position position, final int code) {
         super(position);
 
-        this.symbol = symbol;
+        this.code = code;
+        this.symbol = TokenLib.spelling(code);
     }
 
     public void setLeft(Node left) {
@@ -254,6 +334,12 @@ abstract class BinaryExpr extends InternalNode {
         return right == null;
     }
 
+    @Override
+    void replaceChild(Node child, Node replacement) {
+        if (left == child) left = replacement;
+        if (right == child) right = replacement;
+    }
+
     @Override
     public String toString() {
         String ls = left == null ? "null" : left.toString();
@@ -264,10 +350,10 @@ abstract class BinaryExpr extends InternalNode {
 
 class AssignmentNode extends BinaryExpr {
 
-    private int varLevel;
+    int varLevel;
 
     AssignmentNode(final Position position, final int level) {
-        super(position, "=");
+        super(position, TokenLib.ASSIGN);
 
         varLevel = level;
         nodeType = ASSIGNMENT_NODE;
@@ -286,6 +372,16 @@ class AssignmentNode extends BinaryExpr {
     @Override
     public Object evaluate(Environment env) {
         Variable leftName = ((NameNode) left).variable;
+        if (right instanceof LongArithmeticNode && varLevel != Parser.CONST) {
+            try {
+                env.setLong(leftName, right.evaluateLong(env), position);
+                return right;
+            } catch (UnexpectedResult e) {
+                if (varLevel == Parser.VAR) env.defineVar(leftName, e.result, position);
+                else env.assign(leftName, e.result, position);
+                return right;
+            }
+        }
         Object rightObj = right.evaluate(env);
         switch (varLevel) {
             case Parser.ASSIGN:
@@ -308,9 +404,14 @@ class BinaryOperator extends BinaryExpr {
 
     private int extraPrecedence;
 
-    private boolean assignment;
+    boolean assignment;
+
+    /**
+     * Where this node is, while it can still specialize itself.
+     */
+    InternalNode parent;
 
-    BinaryOperator(final Position position, final String operator, final int extra) {
+    BinaryOperator(final Position position, final int operator, final int extra) {
         super(position, operator);
 
         this.extraPrecedence = extra * MULTIPLIER;
@@ -323,13 +424,15 @@ class BinaryOperator extends BinaryExpr {
     }
 
     public int getPrecedence() {
-        return TokenLib.getPrecedence(symbol) + extraPrecedence;
+        return TokenLib.getPrecedence(code) + extraPrecedence;
     }
 
     @Override
     public void lookUp(EnvOptimizer envOptimizer) {
         if (left instanceof NameNode) {
             ((NameNode) left).setVariable(Parser.GET, envOptimizer);
+        } else if (left instanceof InternalNode) {
+            ((InternalNode) left).lookUp(envOptimizer);
         }
         if (right instanceof NameNode) {
             ((NameNode) right).setVariable(Parser.GET, envOptimizer);
@@ -342,25 +445,22 @@ class BinaryOperator extends BinaryExpr {
     @Override
     public Object evaluate(Environment env) {
         Object leftObj = left.evaluate(env);
-        if (symbol.equals("||") || symbol.equals("&&")) {  // performs lazy evaluation
+        if (TokenLib.isLazy(code)) {  // performs lazy evaluation
             return null;
         } else {
             Object rightObj = right.evaluate(env);
+            if (parent != null) return Specializer.rewrite(this, leftObj, rightObj);
+            return compute(leftObj, rightObj);
+        }
+    }
 
-            String lType = leftObj.getClass().getTypeName();
-//            System.out.println(lType);
-            switch (lType) {
-                case "java.lang.Long":
-                    return Arithmetic.arithmetic((Long) leftObj, rightObj, symbol);
-                case "IntNode":
-                    return Arithmetic.arithmetic(((IntNode) leftObj).value, rightObj, symbol);
-                case "java.lang.Double":
-                    return Arithmetic.arithmetic((Double) leftObj, rightObj, symbol);
-                case "FloatNode":
-                    return Arithmetic.arithmetic(((FloatNode) leftObj).value, rightObj, symbol);
-                default:
-                    throw new SplException("Unsupported type for arithmetic");
-            }
+    Object compute(Object leftObj, Object rightObj) {
+        if (leftObj instanceof Long) {
+            return Arithmetic.arithmetic((Long) leftObj, rightObj, code);
+        } else if (leftObj instanceof Double) {
+            return Arithmetic.arithmetic((Double) leftObj, rightObj, code);
+        } else {
+            throw new SplException("Unsupported type for arithmetic");
         }
     }
 
@@ -368,23 +468,23 @@ class BinaryOperator extends BinaryExpr {
 
 class UnaryExpr extends InternalNode {
 
-    private Node value;
-    private String symbol;
+    Node value;
+    int code;
     private int extraPrecedence;
 
-    UnaryExpr(final Position position, final String operator, final int extra) {
+    UnaryExpr(final Position position, final int operator, final int extra) {
         super(position);
 
-        this.symbol = operator;
-        this.extraPrecedence = extra;
+        this.code = operator;
+        this.extraPrecedence = extra * MULTIPLIER;
         switch (operator) {
-            case "!":
+            case TokenLib.NOT:
                 nodeType = NOT_EXPR;
                 break;
-            case "-":
+            case TokenLib.NEG:
                 nodeType = NEGATIVE_EXPR;
                 break;
-            case "return":
+            case TokenLib.RETURN:
                 nodeType = RETURN_STMT;
                 break;
             default:
@@ -397,17 +497,24 @@ class UnaryExpr extends InternalNode {
     }
 
     public int getPrecedence() {
-        return TokenLib.getPrecedence(symbol) + extraPrecedence;
+        return TokenLib.getPrecedence(code) + extraPrecedence;
     }
 
     boolean noValue() {
         return value == null;
     }
 
+    @Override
+    void replaceChild(Node child, Node replacement) {
+        if (value == child) value = replacement;
+    }
+
     @Override
     public void lookUp(EnvOptimizer envOptimizer) {
         if (value instanceof InternalNode) {
             ((InternalNode) value).lookUp(envOptimizer);
+        } else if (value instanceof NameNode) {
+            ((NameNode) value).setVariable(Parser.GET, envOptimizer);
         }
     }
 
@@ -422,16 +529,80 @@ abstract class ConditionStmt extends InternalNode {
     BlockStmt condition;
     Node doBlock;
 
+    /**
+     * Frame slots given back by the do block, or by the scopes of a loop, as <code>{from, to}</code> or
+     * <code>null</code>. They are cleared when the statement ends.
+     */
+    int[] released;
+
+    /**
+     * The only line of the condition, evaluated without its block once {@link Specializer} has run.
+     */
+    Node test;
+
     ConditionStmt(final Position position) {
         super(position);
     }
+
+    boolean isTrue(Environment env) {
+        if (test == null) return (Boolean) condition.evaluate(env);
+        try {
+            return test.evaluateBoolean(env);
+        } catch (UnexpectedResult e) {
+            return (Boolean) e.result;
+        }
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+        if (test == child) test = replacement;
+    }
+
+    /**
+     * Whether <code>range</code>, as given back by a scope, has slots to clear.
+     */
+    static boolean clears(final int[] range) {
+        return range != null && range[0] < range[1];
+    }
+
+    /**
+     * Whether a function is defined under <code>node</code>, so that the scopes around it keep their slots.
+     */
+    static boolean definesFunction(final Node node) {
+        if (node instanceof DefStmt) {
+            return true;
+        } else if (node instanceof BlockStmt) {
+            for (Node line : ((BlockStmt) node).lines) {
+                if (definesFunction(line)) return true;
+            }
+        } else if (node instanceof ConditionStmt) {
+            ConditionStmt cs = (ConditionStmt) node;
+            return definesFunction(cs.condition) || definesFunction(cs.doBlock) ||
+                    node instanceof IfStmt && definesFunction(((IfStmt) node).elseBlock);
+        } else if (node instanceof BinaryExpr) {
+            return definesFunction(((BinaryExpr) node).left) || definesFunction(((BinaryExpr) node).right);
+        } else if (node instanceof UnaryExpr) {
+            return definesFunction(((UnaryExpr) node).value);
+        } else if (node instanceof FunctionCall) {
+            return definesFunction(((FunctionCall) node).arguments);
+        }
+        return false;
+    }
+
+    static Object clear(final Environment env, final int[] range, final Object result) {
+        if (clears(range)) env.clearSlots(range[0], range[1]);
+        return result;
+    }
 }
 
 class IfStmt extends ConditionStmt {
 
     Node elseBlock;
 
-    private VariableCount[] variableCounts;  // {countOfDoBlock, countOfElseBlock}
+    /**
+     * Frame slots given back by the else block, like {@link #released}.
+     */
+    int[] elseReleased;
 
     IfStmt(final Position position) {
         super(position);
@@ -441,39 +612,34 @@ class IfStmt extends ConditionStmt {
 
     @Override
     public Object evaluate(Environment env) {
-        Boolean result = (Boolean) condition.evaluate(env);
-
-        if (result) {
-            Environment inner = new Environment(Environment.SUB_SCOPE, env, variableCounts[0]);
-            return doBlock.evaluate(inner);
+        if (isTrue(env)) {
+            return clear(env, released, doBlock.evaluate(env));
         } else if (elseBlock != null) {
-            Environment inner = new Environment(Environment.SUB_SCOPE, env, variableCounts[1]);
-            return elseBlock.evaluate(inner);
+            return clear(env, elseReleased, elseBlock.evaluate(env));
         } else return null;
     }
 
     @Override
     public void lookUp(EnvOptimizer envOptimizer) {
         condition.lookUp(envOptimizer);
-        variableCounts = new VariableCount[2];
 
         if (doBlock instanceof InternalNode) {
-            EnvOptimizer inner = new EnvOptimizer(Environment.SUB_SCOPE, envOptimizer);
-            ((InternalNode) doBlock).lookUp(inner);
-            variableCounts[0] = new VariableCount(inner.getVariableCounter(), inner.getConstCounter());
+            EnvOptimizer doOptimizer = new EnvOptimizer(Environment.SUB_SCOPE, envOptimizer);
+            if (definesFunction(doBlock)) doOptimizer.keepSlots();
+            ((InternalNode) doBlock).lookUp(doOptimizer);
+            released = doOptimizer.release();
         }
         if (elseBlock instanceof InternalNode) {
-            EnvOptimizer inner = new EnvOptimizer(Environment.SUB_SCOPE, envOptimizer);
-            ((InternalNode) elseBlock).lookUp(inner);
-            variableCounts[1] = new VariableCount(inner.getVariableCounter(), inner.getConstCounter());
+            EnvOptimizer elseOptimizer = new EnvOptimizer(Environment.SUB_SCOPE, envOptimizer);
+            if (definesFunction(elseBlock)) elseOptimizer.keepSlots();
+            ((InternalNode) elseBlock).lookUp(elseOptimizer);
+            elseReleased = elseOptimizer.release();
         }
     }
 }
 
 class WhileStmt extends ConditionStmt {
 
-    private VariableCount[] variableCounts;  // {countTitleBlock, countDoBlock}
-
     WhileStmt(final Position position) {
         super(position);
 
@@ -497,34 +663,33 @@ class WhileStmt extends ConditionStmt {
     public void lookUp(EnvOptimizer envOptimizer) {
         EnvOptimizer titleOptimizer = new EnvOptimizer(Environment.LOOP_SCOPE, envOptimizer);
         EnvOptimizer innerOptimizer = new EnvOptimizer(Environment.SUB_SCOPE, titleOptimizer);
+        if (definesFunction(this)) {
+            titleOptimizer.keepSlots();
+            innerOptimizer.keepSlots();
+        }
 
         condition.lookUp(titleOptimizer);
         if (doBlock instanceof InternalNode) {
             ((InternalNode) doBlock).lookUp(innerOptimizer);
         }
-        variableCounts = new VariableCount[2];
-        variableCounts[0] = titleOptimizer.getVariableCount();
-        variableCounts[1] = innerOptimizer.getVariableCount();
+        // both scopes start at the same slot, so this also gives back the slots of the title
+        released = innerOptimizer.release();
     }
 
     @Override
     public Object evaluate(Environment env) {
-        Environment titleScope = new Environment(Environment.LOOP_SCOPE, env, variableCounts[0]);
-        Environment innerScope = new Environment(Environment.SUB_SCOPE, titleScope, variableCounts[1]);
         Object result = null;
-        while (!titleScope.broken && (Boolean) condition.evaluate(titleScope)) {
-            innerScope.invalidate();
-            result = doBlock.evaluate(innerScope);
-            titleScope.resume();
+        while (!env.broken && isTrue(env)) {
+            result = doBlock.evaluate(env);
+            env.resume();
         }
-        return result;
+        env.broken = false;
+        return clear(env, released, result);
     }
 }
 
 class ForLoopStmt extends ConditionStmt {
 
-    VariableCount[] variableCounts;
-
     ForLoopStmt(final Position position) {
         super(position);
 
@@ -559,6 +724,10 @@ class ForLoopStmt extends ConditionStmt {
     private void forLoopLookUp(EnvOptimizer envOptimizer) {
         EnvOptimizer titleOptimizer = new EnvOptimizer(Environment.LOOP_SCOPE, envOptimizer);
         EnvOptimizer innerOptimizer = new EnvOptimizer(Environment.SUB_SCOPE, titleOptimizer);
+        if (definesFunction(this)) {
+            titleOptimizer.keepSlots();
+            innerOptimizer.keepSlots();
+        }
 
         Node start = condition.getLine(0);
         Node end = condition.getLine(1);
@@ -575,9 +744,8 @@ class ForLoopStmt extends ConditionStmt {
         if (doBlock instanceof InternalNode) {
             ((InternalNode) doBlock).lookUp(innerOptimizer);
         }
-        variableCounts = new VariableCount[2];
-        variableCounts[0] = titleOptimizer.getVariableCount();
-        variableCounts[1] = innerOptimizer.getVariableCount();
+        // both scopes start at the same slot, so this also gives back the slots of the title
+        released = innerOptimizer.release();
     }
 
     @Override
@@ -593,19 +761,17 @@ class ForLoopStmt extends ConditionStmt {
     }
 
     private Object evalForLoop(Environment env) {
-        Environment titleScope = new Environment(Environment.LOOP_SCOPE, env, variableCounts[0]);
-        Environment innerScope = new Environment(Environment.SUB_SCOPE, titleScope, variableCounts[1]);
         Node start = condition.getLine(0);
         Node end = condition.getLine(1);
         Node step = condition.getLine(2);
-        Object result = start.evaluate(titleScope);
-        while (!titleScope.broken && (Boolean) end.evaluate(titleScope)) {
-            innerScope.invalidate();
-            result = doBlock.evaluate(innerScope);
-            titleScope.resume();
-            step.evaluate(titleScope);
+        Object result = start.evaluate(env);
+        while (!env.broken && (Boolean) end.evaluate(env)) {
+            result = doBlock.evaluate(env);
+            env.resume();
+            step.evaluate(env);
         }
-        return result;
+        env.broken = false;
+        return clear(env, released, result);
     }
 
     private Object evalForEachLoop(Environment env) {
@@ -613,10 +779,36 @@ class ForLoopStmt extends ConditionStmt {
     }
 }
 
+/**
+ * A conditional statement pruned to nothing, evaluating to <code>null</code> like a condition that fails.
+ */
+class EmptyStmt extends InternalNode {
+
+    EmptyStmt(final Position position) {
+        super(position);
+
+        nodeType = EMPTY_STMT;
+    }
+
+    @Override
+    public void lookUp(EnvOptimizer envOptimizer) {
+    }
+
+    @Override
+    public Object evaluate(Environment env) {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Empty";
+    }
+}
+
 class ReturnStmt extends UnaryExpr {
 
     ReturnStmt(final Position position) {
-        super(position, "return", 0);  // No return statement can be in parenthesis
+        super(position, TokenLib.RETURN, 0);  // No return statement can be in parenthesis
 
         nodeType = RETURN_STMT;
     }
@@ -676,20 +868,31 @@ class DefStmt extends InternalNode {
 
     @Override
     public void lookUp(EnvOptimizer envOptimizer) {
-        name.variable = envOptimizer.addVar(name.name);
+        name.variable = envOptimizer.addVar(name.symbol);
         EnvOptimizer functionOptimizer = new EnvOptimizer(Environment.FUNCTION_SCOPE, envOptimizer);
         for (Node node : params.getLines()) {
             if (node instanceof NameNode) {
-                functionOptimizer.addVar(((NameNode) node).name);
                 ((NameNode) node).setVariable(Parser.VAR, functionOptimizer);
             } else if (node instanceof AssignmentNode) {
                 // TODO
             }
         }
         body.lookUp(functionOptimizer);
+        functionOptimizer.trimReleased();
         variableCount = functionOptimizer.getVariableCount();
     }
 
+    /**
+     * Returns the body, parsing it first if the parser skipped it.
+     */
+    BlockStmt resolvedBody() {
+        if (body instanceof LazyBlock) {
+            body = ((LazyBlock) body).force();
+            variableCount = body.getVariableCount();
+        }
+        return body;
+    }
+
     @Override
     public Object evaluate(Environment env) {
         Function function = new Function(position, env, variableCount);
@@ -727,6 +930,29 @@ class FunctionCall extends InternalNode {
 
     BlockStmt arguments;
 
+    /**
+     * Set by {@link JitCompiler#prepare} when hot functions are compiled.
+     */
+    JitCompiler jit;
+
+    int calls;
+
+    JitCompiler.Entry jitEntry;
+
+    /**
+     * Set by {@link ClosureCompiler#prepare} when hot functions are compiled to lambdas.
+     */
+    ClosureCompiler tier;
+
+    int tierCalls;
+
+    ClosureCompiler.Entry tierEntry;
+
+    /**
+     * Inline cache of the layout of the last function body called here.
+     */
+    private CallCache cache;
+
     FunctionCall(final Position position, final NameNode name) {
         super(position);
 
@@ -736,30 +962,171 @@ class FunctionCall extends InternalNode {
 
     @Override
     public void lookUp(EnvOptimizer envOptimizer) {
-        name.variable = envOptimizer.get(name.name);
+        name.variable = envOptimizer.get(name.symbol, name.name);
+        arguments.lookUp(envOptimizer);
     }
 
     @Override
     public Object evaluate(Environment env) {
 //        return null;
+        return call(env, null);
+    }
+
+    /**
+     * Calls the function, with the arguments evaluated by their compiled code when <code>args</code> is given.
+     */
+    Object call(final Environment env, final ClosureCompiler.Code[] args) {
         Function function = (Function) env.get(name.variable, position);
-        Environment callScope = new Environment(Environment.FUNCTION_SCOPE, function.outerEnv, function.variableCount);
+        CallCache cache = this.cache;
+        if (cache == null || cache.body != function.body) cache = bind(function);
+        if (jit != null) {
+            JitCode code = jit.compiled(this, function);
+            if (code != null) return callCompiled(code, function, cache, env, args);
+        }
+        Environment callScope = function.newCallScope(env);
+        int[] slots = cache.slots;
+        if (slots != null) {
+            Object[] frame = callScope.getSlots();
+            for (int i = 0; i < slots.length; i++) {
+                frame[slots[i]] = argument(function, cache, i, env, args);
+            }
+        } else {
 //        Object[] args = new Object[function.params.length];
-        for (int i = 0; i < function.params.length; i++) {
-            Variable argName = function.params[i].variable;
-            Object arg;
-            if (i < arguments.lineCount()) {
-                arg = arguments.getLine(i).evaluate(env);
+            for (int i = 0; i < function.params.length; i++) {
+                Variable argName = function.params[i].variable;
+                callScope.defineVar(argName, argument(function, cache, i, env, args), position);
+            }
+        }
+        return run(function, callScope);
+    }
+
+    /**
+     * The slow path of the inline cache, taken when the function has another body than the last call found:
+     * parses the body if it was skipped and caches the parameter layout of its definition. Functions made by
+     * the same definition share the layout, so a new closure of a skipped body only parses it.
+     */
+    private CallCache bind(final Function function) {
+        if (function.body instanceof LazyBlock) {
+            function.body = ((LazyBlock) function.body).force();
+            function.variableCount = function.body.getVariableCount();
+            CallCache cache = this.cache;
+            if (cache != null && cache.body == function.body) return cache;
+        }
+        int[] slots = new int[function.params.length];
+        for (int i = 0; i < slots.length; i++) {
+            Variable variable = function.params[i].variable;
+            if (variable == null || variable.kind != Variable.LOCAL) {
+                slots = null;
+                break;
+            }
+            slots[i] = variable.index;
+        }
+        CallCache cache = new CallCache(function.body, slots, arguments.lineCount());
+        this.cache = cache;
+        return cache;
+    }
+
+    private Object run(final Function function, final Environment callScope) {
+        if (tier != null) {
+            ClosureCompiler.Code body = tier.compiled(this, function);
+            if (body != null) return body.run(callScope);
+        }
+        return function.body.evaluate(callScope);
+    }
+
+    private Object argument(final Function function, final CallCache cache, final int i, final Environment env,
+                            final ClosureCompiler.Code[] args) {
+        if (i < cache.argCount) {
+            return args == null ? arguments.getLine(i).evaluate(env) : args[i].run(env);
+        } else {
+            Object preset = function.params[i].defaultValue;
+            if (preset == null) {
+                throw new SplException(String.format("Missing argument(s) in function '%s'", name));
             } else {
-                Object preset = function.params[i].defaultValue;
-                if (preset == null) {
-                    throw new SplException(String.format("Missing argument(s) in function '%s'", name));
-                } else {
-                    arg = preset;
+                return preset;
+            }
+        }
+    }
+
+    /**
+     * Runs the compiled body when all arguments are ints, otherwise the tree with the arguments already evaluated.
+     */
+    private Object callCompiled(final JitCode code, final Function function, final CallCache cache,
+                                final Environment env, final ClosureCompiler.Code[] compiledArgs) {
+        int count = function.params.length;
+        long[] longs = new long[count];
+        Object[] args = null;
+        for (int i = 0; i < count; i++) {
+            Object arg = argument(function, cache, i, env, compiledArgs);
+            if (args == null && arg instanceof Long) {
+                longs[i] = (Long) arg;
+            } else {
+                if (args == null) {
+                    args = new Object[count];
+                    for (int j = 0; j < i; j++) args[j] = longs[j];
                 }
+                args[i] = arg;
             }
-            callScope.defineVar(argName, arg, position);
         }
-        return function.body.evaluate(callScope);
+        if (args == null) return code.run(longs);
+
+        Environment callScope = function.newCallScope(env);
+        for (int i = 0; i < count; i++) {
+            callScope.defineVar(function.params[i].variable, args[i], position);
+        }
+        return run(function, callScope);
+    }
+
+    /**
+     * What calls from one site need of a function body, replaced as a whole so that threads sharing the tree see
+     * a matching set. It holds no function, so frames of ended runs are not kept reachable.
+     */
+    private static class CallCache {
+
+        final BlockStmt body;
+
+        /**
+         * Frame slot of each parameter, or <code>null</code> if a parameter is kept in a cell.
+         */
+        final int[] slots;
+
+        final int argCount;
+
+        CallCache(final BlockStmt body, final int[] slots, final int argCount) {
+            this.body = body;
+            this.slots = slots;
+            this.argCount = argCount;
+        }
+    }
+
+    /**
+     * Applies <code>action</code> to every call site of a tree, except in bodies still waiting for lazy parsing.
+     */
+    static void forEach(final Node node, final Consumer<FunctionCall> action) {
+        if (node instanceof LazyBlock) {
+            return;
+        } else if (node instanceof BlockStmt) {
+            for (Node line : ((BlockStmt) node).lines) forEach(line, action);
+        } else if (node instanceof BinaryExpr) {
+            forEach(((BinaryExpr) node).left, action);
+            forEach(((BinaryExpr) node).right, action);
+        } else if (node instanceof SpecializedBinary) {
+            forEach(((SpecializedBinary) node).left, action);
+            forEach(((SpecializedBinary) node).right, action);
+        } else if (node instanceof UnaryExpr) {
+            forEach(((UnaryExpr) node).value, action);
+        } else if (node instanceof ConditionStmt) {
+            ConditionStmt cs = (ConditionStmt) node;
+            forEach(cs.test != null ? cs.test : cs.condition, action);
+            forEach(cs.doBlock, action);
+            if (node instanceof IfStmt) forEach(((IfStmt) node).elseBlock, action);
+        } else if (node instanceof DefStmt) {
+            forEach(((DefStmt) node).params, action);
+            forEach(((DefStmt) node).body, action);
+        } else if (node instanceof FunctionCall) {
+            FunctionCall fc = (FunctionCall) node;
+            action.accept(fc);
+            forEach(fc.arguments, action);
+        }
     }
 }
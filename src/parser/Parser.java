@@ -2,17 +2,25 @@ package parser;
 
 import interpreter.EnvOptimizer;
 import interpreter.Environment;
+import tokenizer.LexerException;
 import tokenizer.Position;
 import tokenizer.Token;
 import tokenizer.TokenLib;
-import tokenizer.Tokenizer;
+import tokenizer.TokenStream;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
 
 public class Parser {
 
-    private ArrayList<Token> tokens;
+    private TokenStream tokens;
+
+    private boolean lazy;
+
+    private ForkJoinPool pool;
+
+    private boolean closures;
 
     public final static int ASSIGN = 0;
     public final static int CONST = 1;
@@ -20,14 +28,58 @@ public class Parser {
     public final static int GET = 3;
 //    final static int LET = 3;
 
-    public Parser(final Tokenizer tokenizer) {
-        tokens = tokenizer.getTokens();
+    public Parser(final TokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Makes the parser skip the bodies of functions, which are parsed and looked up on their first call.
+     */
+    public void setLazy(final boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Makes the parser skip function bodies and then parse and look them up on <code>pool</code>, once the
+     * enclosing scopes are known. A <code>null</code> pool turns this off.
+     */
+    public void setPool(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Makes functions capture the variables of enclosing functions into cells. Capture sets are only known
+     * once every body has been looked up, so this turns lazy and parallel parsing off.
+     */
+    public void setClosures(final boolean closures) {
+        this.closures = closures;
+    }
+
+    public BlockStmt parse() throws ParseException, LexerException {
+        if (closures) {
+            lazy = false;
+            pool = null;
+        }
+        if (pool != null) lazy = true;
+        BlockStmt blockStmt = build();
+        EnvOptimizer globalOptimizer = new EnvOptimizer(Environment.GLOBAL_SCOPE, null);
+        globalOptimizer.setClosures(closures);
+        blockStmt.lookUp(globalOptimizer);
+        globalOptimizer.trimReleased();
+        if (pool != null) {
+            ArrayList<DefStmt> defs = new ArrayList<>();
+            BodyResolver.collect(blockStmt, defs);
+            if (!defs.isEmpty()) pool.invoke(new BodyResolver(defs));
+        }
+        return blockStmt;
     }
 
-    public BlockStmt parse() throws ParseException {
+    /**
+     * Builds the tree of the whole stream without looking up names.
+     */
+    BlockStmt build() throws ParseException, LexerException {
         AbstractSyntaxTree ast = new AbstractSyntaxTree();
 
-        int i = 0;
         int afCount = 0;
         int callNest = 0;
         int braceCount = 0;
@@ -35,32 +87,32 @@ public class Parser {
         int varLevel = ASSIGN;
         boolean inCondition = false;
         boolean inFunctionParams = false;
-        Stack<Integer> classBraces = new Stack<>();  // records the brace number outside class
+        ArrayDeque<Integer> classBraces = new ArrayDeque<>();  // records the brace number outside class
 
         while (true) {
-            Token token = tokens.get(i);
-            Token next;
-            Position pos = token.getPosition();
+            tokens.next();
+            int kind = tokens.kind(0);
+            Position pos = tokens.position(0);
             try {
-                if (token.isIdentifier()) {
-                    String sym = token.getValue();
-                    if (TokenLib.isNormalUnaryOperator(sym)) {
-                        ast.addUnaryOperator(pos, sym, extraPrecedence);
-                    } else if (TokenLib.isBinaryOperator(sym)) {
-                        if (sym.equals("-") && (i == 0 || isUnary(tokens.get(i - 1)))) {
-                            ast.addUnaryOperator(pos, "-", extraPrecedence);
+                if (kind == Token.IDENTIFIER) {
+                    int code = tokens.code(0);
+                    if (TokenLib.isNormalUnaryOperator(code)) {
+                        ast.addUnaryOperator(pos, code, extraPrecedence);
+                    } else if (TokenLib.isBinaryOperator(code)) {
+                        if (code == TokenLib.SUB && isUnary(tokens)) {
+                            ast.addUnaryOperator(pos, TokenLib.NEG, extraPrecedence);
                         } else {
-                            ast.addBinaryOperator(pos, sym, extraPrecedence);
+                            ast.addBinaryOperator(pos, code, extraPrecedence);
                         }
-                    } else if (TokenLib.isOpEq(sym)) {
-                        ast.addBinaryOperatorWithAssignment(pos, sym, extraPrecedence);
+                    } else if (TokenLib.isOpEq(code)) {
+                        ast.addBinaryOperatorWithAssignment(pos, code, extraPrecedence);
                     } else {
-                        switch (sym) {
-                            case "{":
+                        switch (code) {
+                            case TokenLib.LBRACE:
                                 braceCount++;
                                 ast.newAst();
                                 break;
-                            case "}":
+                            case TokenLib.RBRACE:
                                 braceCount--;
                                 ast.buildLine();
                                 ast.buildAst();
@@ -68,17 +120,16 @@ public class Parser {
                                     ast.buildClass();
                                     classBraces.pop();
                                 } else {
-                                    next = tokens.get(i + 1);
-                                    if (!next.isIdentifier() || !TokenLib.inNoBuildLine(next.getValue())) {
+                                    if (!TokenLib.inNoBuildLine(tokens.code(1))) {
                                         ast.buildExpr();
                                         ast.buildLine();
                                     }
                                 }
                                 break;
-                            case "(":
+                            case TokenLib.LPAREN:
                                 extraPrecedence++;
                                 break;
-                            case ")":
+                            case TokenLib.RPAREN:
                                 if (extraPrecedence == 0) {
                                     if (callNest > 0) {
                                         ast.buildLine();
@@ -92,6 +143,7 @@ public class Parser {
 //                                        ast.buildExpr();
                                         ast.buildFunctionParams();
                                         inFunctionParams = false;
+                                        if (lazy && tokens.code(1) == TokenLib.LBRACE) skipBody(ast);
                                     } else {
                                         throw new ParseException("Unexpected back parenthesis");
                                     }
@@ -99,147 +151,168 @@ public class Parser {
                                     extraPrecedence--;
                                 }
                                 break;
-                            case "=":
+                            case TokenLib.ASSIGN:
                                 ast.buildExpr();
                                 ast.addAssignment(pos, varLevel);
                                 varLevel = ASSIGN;
                                 break;
-                            case ":":
+                            case TokenLib.COLON:
                                 break;
-                            case ",":
+                            case TokenLib.COMMA:
 //                                ast.buildExpr();
                                 if (callNest > 0 || inFunctionParams) ast.buildLine();
                                 break;
-                            case ".":
+                            case TokenLib.DOT:
                                 break;
-                            case "=>":
+                            case TokenLib.ARROW:
                                 break;
-                            case "var":
+                            case TokenLib.VAR:
                                 varLevel = VAR;
                                 break;
-                            case "const":
+                            case TokenLib.CONST:
                                 varLevel = CONST;
                                 break;
-//                            case "let":
+//                            case TokenLib.LET:
 //                                varLevel = LET;
 //                                break;
-                            case "true":
+                            case TokenLib.TRUE:
                                 ast.addBoolean(pos, true);
                                 break;
-                            case "false":
+                            case TokenLib.FALSE:
                                 ast.addBoolean(pos, false);
                                 break;
-                            case "null":
+                            case TokenLib.NULL:
                                 ast.addNull(pos);
                                 break;
-                            case "if":
+                            case TokenLib.IF:
                                 inCondition = true;
                                 ast.addIf(pos);
-                                i += 1;
+                                tokens.next();
                                 break;
-                            case "else":
+                            case TokenLib.ELSE:
                                 // Do nothing
                                 break;
-                            case "while":
+                            case TokenLib.WHILE:
                                 inCondition = true;
                                 ast.addWhileLoop(pos);
-                                i += 1;
+                                tokens.next();
                                 break;
-                            case "for":
+                            case TokenLib.FOR:
                                 inCondition = true;
                                 ast.addForLoop(pos);
-                                i += 1;
-                                break;
-                            case "def":
-                            case "function":
-                                i += 1;
-                                next = tokens.get(i);
-                                assert next.isIdentifier();
-                                String fName = next.getValue();
-                                int pushBack = 1;
-                                if (fName.equals("(")) {
+                                tokens.next();
+                                break;
+                            case TokenLib.DEF:
+                            case TokenLib.FUNCTION:
+                                tokens.next();
+                                assert tokens.kind(0) == Token.IDENTIFIER;
+                                String fName;
+                                int fSymbol;
+                                if (tokens.code(0) == TokenLib.LPAREN) {
                                     fName = "af-" + afCount;
-                                    pushBack = 0;
+                                    fSymbol = tokens.getSymbolTable().intern(fName);
                                     afCount += 1;
+                                } else {
+                                    fName = tokens.text(0);
+                                    fSymbol = tokens.symbol(0);
+                                    tokens.next();
                                 }
-                                ast.addDef(pos, fName);
-                                i += pushBack;
+                                ast.addDef(pos, fSymbol, fName);
                                 inFunctionParams = true;
                                 break;
-                            case "class":
+                            case TokenLib.CLASS:
                                 classBraces.push(braceCount);
                                 break;
-                            case "return":
-                                ast.addUnaryOperator(pos, "return", 0);
+                            case TokenLib.RETURN:
+                                ast.addUnaryOperator(pos, TokenLib.RETURN, 0);
                                 break;
-                            case "break":
+                            case TokenLib.BREAK:
                                 ast.addBreak(pos);
                                 break;
-                            case "continue":
+                            case TokenLib.CONTINUE:
                                 ast.addContinue(pos);
                                 break;
-                            case "abstract":
+                            case TokenLib.ABSTRACT:
                                 ast.addAbstract(pos);
                                 break;
-                            case Token.EOL:
+                            case TokenLib.EOL:
 
                                 ast.buildExpr();
                                 ast.buildLine();
                                 break;
                             default:
-                                next = tokens.get(i + 1);
-                                if (next.isIdentifier()) {
-                                    String nextIdentifier = next.getValue();
-                                    if (nextIdentifier.equals("(")) {
-                                        ast.addCall(pos, sym);
-                                        callNest++;
-                                        i++;
-                                    } else if (nextIdentifier.equals("[")) {
-
-                                    } else {
-                                        ast.addName(pos, sym);
-                                    }
-                                } else {
-                                    ast.addName(pos, sym);
+                                int nextCode = tokens.code(1);
+                                if (nextCode == TokenLib.LPAREN) {
+                                    ast.addCall(pos, tokens.symbol(0), tokens.text(0));
+                                    callNest++;
+                                    tokens.next();
+                                } else if (nextCode != TokenLib.LBRACKET) {
+                                    ast.addName(pos, tokens.symbol(0), tokens.text(0));
                                 }
                                 break;
                         }
                     }
-                } else if (token.isNumber()) {
-                    if (token.isFloat()) {
-                        ast.addFloat(pos, token.getValue());
-                    } else {
-                        ast.addInteger(pos, token.getValue());
-                    }
-                } else if (token.isLiteral()) {
-                    ast.addLiteral(pos, token.getValue());
-                } else if (token.isEof()) {
+                } else if (kind == Token.FLOAT) {
+                    ast.addFloat(pos, tokens.text(0));
+                } else if (kind == Token.INTEGER) {
+                    ast.addInteger(pos, tokens.text(0));
+                } else if (kind == Token.LITERAL) {
+                    ast.addLiteral(pos, tokens.text(0));
+                } else if (kind == Token.EOF) {
                     break;
                 }
-                i++;
+            } catch (LexerException e) {
+                throw e;
             } catch (Exception e) {
                 e.printStackTrace();
                 throw new ParseException("Parse error in");
             }
         }
 
-        BlockStmt blockStmt = ast.getBlock();
-        blockStmt.lookUp(new EnvOptimizer(Environment.GLOBAL_SCOPE, null));
-        return blockStmt;
+        return ast.getBlock();
+    }
+
+    /**
+     * Skips a function body by counting braces and adds it as a {@link LazyBlock}, finishing the line the
+     * same way as the closing brace of a parsed body.
+     */
+    private void skipBody(AbstractSyntaxTree ast) throws ParseException, LexerException {
+        tokens.next();
+        Position pos = tokens.position(0);
+        int start = tokens.offset(0) + 1;
+        int depth = 1;
+        while (depth > 0) {
+            tokens.next();
+            int code = tokens.code(0);
+            if (code == TokenLib.LBRACE) {
+                depth++;
+            } else if (code == TokenLib.RBRACE) {
+                depth--;
+            } else if (tokens.kind(0) == Token.EOF) {
+                throw new ParseException(String.format("Unterminated function body, in file '%s', at line %d",
+                        pos.getFileName(), pos.getLineNumber()));
+            }
+        }
+        ast.addLazyBody(new LazyBlock(pos, tokens.slice(start, tokens.offset(0))));
+        if (!TokenLib.inNoBuildLine(tokens.code(1))) {
+            ast.buildExpr();
+            ast.buildLine();
+        }
     }
 
-    private static boolean isUnary(Token token) {
-        if (token.isIdentifier()) {
-            String sym = token.getValue();
-            if (sym.equals(Token.EOL)) {
+    private static boolean isUnary(TokenStream tokens) throws LexerException {
+        int kind = tokens.kind(-1);
+        if (kind == Token.IDENTIFIER) {
+            int code = tokens.code(-1);
+            if (code == TokenLib.EOL) {
                 return true;
             } else {
-                if (TokenLib.isBinaryOperator(sym)) return true;
-                else if (TokenLib.isSymbol(sym)) return true;
-                else if (TokenLib.isReserved(sym)) return true;
-                else if (sym.equals("(")) return true;
-                else return sym.equals("=");
+                if (TokenLib.isBinaryOperator(code)) return true;
+                else if (TokenLib.isSymbol(code)) return true;
+                else if (TokenLib.isReserved(code)) return true;
+                else if (code == TokenLib.LPAREN) return true;
+                else return code == TokenLib.ASSIGN;
             }
-        } else return !token.isNumber();
+        } else return kind != Token.INTEGER && kind != Token.FLOAT;
     }
 }
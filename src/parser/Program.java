@@ -0,0 +1,73 @@
+package parser;
+
+import interpreter.Environment;
+import interpreter.VariableCount;
+
+/**
+ * A parsed and looked up script, ready to run. Running a program does not change it, so threads may share one
+ * program and run it at the same time, each in its own global environment. Trees prepared by
+ * {@link Specializer} are the exception.
+ */
+public class Program {
+
+    /**
+     * The tree when the program runs on the tree engine, otherwise <code>null</code> so that encoded programs
+     * do not keep the nodes reachable.
+     */
+    private final BlockStmt root;
+
+    /**
+     * The encoded tree when the program runs on the flat engine, otherwise <code>null</code>.
+     */
+    private final FlatAst flatAst;
+
+    /**
+     * The compiled program when it runs on the bytecode engine, otherwise <code>null</code>.
+     */
+    private final Bytecode bytecode;
+
+    private final VariableCount variableCount;
+
+    private Program(final BlockStmt root, final FlatAst flatAst, final Bytecode bytecode,
+                    final VariableCount variableCount) {
+        this.root = root;
+        this.flatAst = flatAst;
+        this.bytecode = bytecode;
+        this.variableCount = variableCount;
+    }
+
+    public static Program of(final BlockStmt root) {
+        return new Program(root, null, null, root.getVariableCount());
+    }
+
+    /**
+     * Creates a program that runs on the flat engine. It does not keep <code>root</code>.
+     */
+    public static Program flat(final BlockStmt root) {
+        FlatAst flatAst = FlatAst.encode(root);
+        return new Program(null, flatAst, null, flatAst.getVariableCount());
+    }
+
+    /**
+     * Creates a program that runs on the bytecode engine. It does not keep <code>root</code>.
+     */
+    public static Program vm(final BlockStmt root) {
+        Bytecode bytecode = Bytecode.compile(root);
+        return new Program(null, null, bytecode, bytecode.getVariableCount());
+    }
+
+    public VariableCount getVariableCount() {
+        return variableCount;
+    }
+
+    public Object evaluate(final Environment global) {
+        if (bytecode != null) return bytecode.execute(global);
+        return flatAst == null ? root.evaluate(global) : flatAst.evaluate(global);
+    }
+
+    @Override
+    public String toString() {
+        if (bytecode != null) return bytecode.toString();
+        return flatAst == null ? root.toString() : flatAst.toString();
+    }
+}
@@ -0,0 +1,456 @@
+package parser;
+
+import interpreter.EnvOptimizer;
+import interpreter.Environment;
+import interpreter.UnexpectedResult;
+
+/**
+ * A binary operator that has only seen operands of one type pair. It evaluates its operands unboxed, and when one
+ * of them has another type it puts the generic {@link BinaryOperator} it replaced back into its parent.
+ * <p>
+ * Each result type evaluates its operands once, in {@link LongArithmeticNode}, {@link LongCompareNode},
+ * {@link DoubleArithmeticNode} and {@link DoubleCompareNode}, and an operator only supplies {@code op}.
+ */
+abstract class SpecializedBinary extends InternalNode {
+
+    Node left;
+    Node right;
+
+    /**
+     * The node this one replaced, which holds the operator code.
+     */
+    final BinaryOperator generic;
+
+    InternalNode parent;
+
+    SpecializedBinary(final BinaryOperator generic) {
+        super(generic.position);
+
+        this.generic = generic;
+        this.left = generic.left;
+        this.right = generic.right;
+        this.parent = generic.parent;
+        nodeType = BINARY_OPERATOR;
+    }
+
+    @Override
+    public void lookUp(final EnvOptimizer envOptimizer) {
+    }
+
+    @Override
+    void replaceChild(final Node child, final Node replacement) {
+        if (left == child) left = replacement;
+        if (right == child) right = replacement;
+    }
+
+    /**
+     * Restores the generic node in the parent, which keeps the current children, and evaluates it on operands
+     * that are already evaluated.
+     */
+    Object generalize(final Object leftObj, final Object rightObj) {
+        generic.left = left;
+        generic.right = right;
+        generic.parent = null;
+        Specializer.reparent(left, this, generic);
+        Specializer.reparent(right, this, generic);
+        parent.replaceChild(this, generic);
+        return generic.compute(leftObj, rightObj);
+    }
+
+    @Override
+    public String toString() {
+        return generic.toString();
+    }
+}
+
+/**
+ * An operator on two ints with an int result, which an assignment can store without boxing.
+ */
+abstract class LongArithmeticNode extends SpecializedBinary {
+
+    LongArithmeticNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    abstract long op(long leftValue, long rightValue);
+
+    @Override
+    public Object evaluate(Environment env) {
+        try {
+            return evaluateLong(env);
+        } catch (UnexpectedResult e) {
+            return e.result;
+        }
+    }
+
+    @Override
+    long evaluateLong(Environment env) {
+        long leftValue;
+        try {
+            leftValue = left.evaluateLong(env);
+        } catch (UnexpectedResult e) {
+            return asLong(generalize(e.result, right.evaluate(env)));
+        }
+        long rightValue;
+        try {
+            rightValue = right.evaluateLong(env);
+        } catch (UnexpectedResult e) {
+            return asLong(generalize(leftValue, e.result));
+        }
+        return op(leftValue, rightValue);
+    }
+}
+
+/**
+ * A comparison of two ints.
+ */
+abstract class LongCompareNode extends SpecializedBinary {
+
+    LongCompareNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    abstract boolean op(long leftValue, long rightValue);
+
+    @Override
+    public Object evaluate(Environment env) {
+        try {
+            return evaluateBoolean(env);
+        } catch (UnexpectedResult e) {
+            return e.result;
+        }
+    }
+
+    @Override
+    boolean evaluateBoolean(Environment env) {
+        long leftValue;
+        try {
+            leftValue = left.evaluateLong(env);
+        } catch (UnexpectedResult e) {
+            return asBoolean(generalize(e.result, right.evaluate(env)));
+        }
+        long rightValue;
+        try {
+            rightValue = right.evaluateLong(env);
+        } catch (UnexpectedResult e) {
+            return asBoolean(generalize(leftValue, e.result));
+        }
+        return op(leftValue, rightValue);
+    }
+}
+
+/**
+ * An operator on two floats with a float result.
+ */
+abstract class DoubleArithmeticNode extends SpecializedBinary {
+
+    DoubleArithmeticNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    abstract double op(double leftValue, double rightValue);
+
+    @Override
+    public Object evaluate(Environment env) {
+        try {
+            return evaluateDouble(env);
+        } catch (UnexpectedResult e) {
+            return e.result;
+        }
+    }
+
+    @Override
+    double evaluateDouble(Environment env) {
+        double leftValue;
+        try {
+            leftValue = left.evaluateDouble(env);
+        } catch (UnexpectedResult e) {
+            return asDouble(generalize(e.result, right.evaluate(env)));
+        }
+        double rightValue;
+        try {
+            rightValue = right.evaluateDouble(env);
+        } catch (UnexpectedResult e) {
+            return asDouble(generalize(leftValue, e.result));
+        }
+        return op(leftValue, rightValue);
+    }
+}
+
+/**
+ * A comparison of two floats.
+ */
+abstract class DoubleCompareNode extends SpecializedBinary {
+
+    DoubleCompareNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    abstract boolean op(double leftValue, double rightValue);
+
+    @Override
+    public Object evaluate(Environment env) {
+        try {
+            return evaluateBoolean(env);
+        } catch (UnexpectedResult e) {
+            return e.result;
+        }
+    }
+
+    @Override
+    boolean evaluateBoolean(Environment env) {
+        double leftValue;
+        try {
+            leftValue = left.evaluateDouble(env);
+        } catch (UnexpectedResult e) {
+            return asBoolean(generalize(e.result, right.evaluate(env)));
+        }
+        double rightValue;
+        try {
+            rightValue = right.evaluateDouble(env);
+        } catch (UnexpectedResult e) {
+            return asBoolean(generalize(leftValue, e.result));
+        }
+        return op(leftValue, rightValue);
+    }
+}
+
+class LongAddNode extends LongArithmeticNode {
+
+    LongAddNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    long op(long leftValue, long rightValue) {
+        return leftValue + rightValue;
+    }
+}
+
+class LongSubNode extends LongArithmeticNode {
+
+    LongSubNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    long op(long leftValue, long rightValue) {
+        return leftValue - rightValue;
+    }
+}
+
+class LongMulNode extends LongArithmeticNode {
+
+    LongMulNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    long op(long leftValue, long rightValue) {
+        return leftValue * rightValue;
+    }
+}
+
+class LongDivNode extends LongArithmeticNode {
+
+    LongDivNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    long op(long leftValue, long rightValue) {
+        return leftValue / rightValue;
+    }
+}
+
+class LongModNode extends LongArithmeticNode {
+
+    LongModNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    long op(long leftValue, long rightValue) {
+        return leftValue % rightValue;
+    }
+}
+
+class LongLessThanNode extends LongCompareNode {
+
+    LongLessThanNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(long leftValue, long rightValue) {
+        return leftValue < rightValue;
+    }
+}
+
+class LongGreaterThanNode extends LongCompareNode {
+
+    LongGreaterThanNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(long leftValue, long rightValue) {
+        return leftValue > rightValue;
+    }
+}
+
+class LongLessEqualNode extends LongCompareNode {
+
+    LongLessEqualNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(long leftValue, long rightValue) {
+        return leftValue <= rightValue;
+    }
+}
+
+class LongGreaterEqualNode extends LongCompareNode {
+
+    LongGreaterEqualNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(long leftValue, long rightValue) {
+        return leftValue >= rightValue;
+    }
+}
+
+class LongEqualNode extends LongCompareNode {
+
+    LongEqualNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(long leftValue, long rightValue) {
+        return leftValue == rightValue;
+    }
+}
+
+class LongNotEqualNode extends LongCompareNode {
+
+    LongNotEqualNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(long leftValue, long rightValue) {
+        return leftValue != rightValue;
+    }
+}
+
+class DoubleAddNode extends DoubleArithmeticNode {
+
+    DoubleAddNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    double op(double leftValue, double rightValue) {
+        return leftValue + rightValue;
+    }
+}
+
+class DoubleSubNode extends DoubleArithmeticNode {
+
+    DoubleSubNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    double op(double leftValue, double rightValue) {
+        return leftValue - rightValue;
+    }
+}
+
+class DoubleMulNode extends DoubleArithmeticNode {
+
+    DoubleMulNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    double op(double leftValue, double rightValue) {
+        return leftValue * rightValue;
+    }
+}
+
+class DoubleDivNode extends DoubleArithmeticNode {
+
+    DoubleDivNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    double op(double leftValue, double rightValue) {
+        return leftValue / rightValue;
+    }
+}
+
+class DoubleModNode extends DoubleArithmeticNode {
+
+    DoubleModNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    double op(double leftValue, double rightValue) {
+        return leftValue % rightValue;
+    }
+}
+
+class DoubleLessThanNode extends DoubleCompareNode {
+
+    DoubleLessThanNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(double leftValue, double rightValue) {
+        return leftValue < rightValue;
+    }
+}
+
+class DoubleGreaterThanNode extends DoubleCompareNode {
+
+    DoubleGreaterThanNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(double leftValue, double rightValue) {
+        return leftValue > rightValue;
+    }
+}
+
+class DoubleLessEqualNode extends DoubleCompareNode {
+
+    DoubleLessEqualNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(double leftValue, double rightValue) {
+        return leftValue <= rightValue;
+    }
+}
+
+class DoubleGreaterEqualNode extends DoubleCompareNode {
+
+    DoubleGreaterEqualNode(final BinaryOperator generic) {
+        super(generic);
+    }
+
+    @Override
+    boolean op(double leftValue, double rightValue) {
+        return leftValue >= rightValue;
+    }
+}
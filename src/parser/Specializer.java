@@ -0,0 +1,142 @@
+package parser;
+
+import tokenizer.TokenLib;
+
+/**
+ * Prepares a looked up tree for the tree engine to specialize while it runs. Each arithmetic or comparison
+ * operator learns its parent, so the first time it runs it can replace itself with a node for the operand types
+ * it saw, such as {@link LongAddNode}. The condition of an if or while statement with a single line is taken out
+ * of its block, so the statement evaluates it directly.
+ * <p>
+ * A specialized tree changes while it runs, so its program must not be run by several threads at once. Bodies
+ * that are still waiting for lazy parsing are not specialized.
+ */
+public class Specializer {
+
+    public BlockStmt specialize(final BlockStmt root) {
+        visit(root, null);
+        return root;
+    }
+
+    private void visit(final Node node, final InternalNode parent) {
+        if (node instanceof LazyBlock) {
+            return;
+        } else if (node instanceof BlockStmt) {
+            BlockStmt bs = (BlockStmt) node;
+            for (Node line : bs.lines) visit(line, bs);
+        } else if (node instanceof AssignmentNode) {
+            visit(((AssignmentNode) node).right, (AssignmentNode) node);
+        } else if (node instanceof BinaryOperator) {
+            BinaryOperator bo = (BinaryOperator) node;
+            visit(bo.left, bo);
+            visit(bo.right, bo);
+            if (!bo.assignment && bo.code >= TokenLib.ADD && bo.code <= TokenLib.NEQ) bo.parent = parent;
+        } else if (node instanceof UnaryExpr) {
+            visit(((UnaryExpr) node).value, (UnaryExpr) node);
+        } else if (node instanceof ConditionStmt) {
+            ConditionStmt cs = (ConditionStmt) node;
+            if (!(node instanceof ForLoopStmt) && cs.condition.lineCount() == 1) {
+                cs.test = cs.condition.getLine(0);
+                visit(cs.test, cs);
+            } else {
+                visit(cs.condition, cs);
+            }
+            visit(cs.doBlock, cs);
+            if (node instanceof IfStmt) visit(((IfStmt) node).elseBlock, cs);
+        } else if (node instanceof DefStmt) {
+            DefStmt ds = (DefStmt) node;
+            visit(ds.params, ds);
+            visit(ds.body, ds);
+        } else if (node instanceof FunctionCall) {
+            visit(((FunctionCall) node).arguments, (FunctionCall) node);
+        }
+    }
+
+    /**
+     * Replaces a generic operator that has just run with a node for the types of its operands, or leaves it
+     * generic for good if there is none, and returns its result.
+     */
+    static Object rewrite(final BinaryOperator bo, final Object leftObj, final Object rightObj) {
+        SpecializedBinary node = null;
+        if (leftObj instanceof Long && rightObj instanceof Long) {
+            node = longNode(bo);
+        } else if (leftObj instanceof Double && rightObj instanceof Double) {
+            node = doubleNode(bo);
+        }
+        if (node != null) {
+            reparent(node.left, bo, node);
+            reparent(node.right, bo, node);
+            bo.parent.replaceChild(bo, node);
+        }
+        bo.parent = null;
+        return bo.compute(leftObj, rightObj);
+    }
+
+    private static SpecializedBinary longNode(final BinaryOperator bo) {
+        switch (bo.code) {
+            case TokenLib.ADD:
+                return new LongAddNode(bo);
+            case TokenLib.SUB:
+                return new LongSubNode(bo);
+            case TokenLib.MUL:
+                return new LongMulNode(bo);
+            case TokenLib.DIV:
+                return new LongDivNode(bo);
+            case TokenLib.MOD:
+                return new LongModNode(bo);
+            case TokenLib.LT:
+                return new LongLessThanNode(bo);
+            case TokenLib.GT:
+                return new LongGreaterThanNode(bo);
+            case TokenLib.LE:
+                return new LongLessEqualNode(bo);
+            case TokenLib.GE:
+                return new LongGreaterEqualNode(bo);
+            case TokenLib.EQ:
+                return new LongEqualNode(bo);
+            case TokenLib.NEQ:
+                return new LongNotEqualNode(bo);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Float equality keeps the semantics of {@link Double#equals}, so it stays generic.
+     */
+    private static SpecializedBinary doubleNode(final BinaryOperator bo) {
+        switch (bo.code) {
+            case TokenLib.ADD:
+                return new DoubleAddNode(bo);
+            case TokenLib.SUB:
+                return new DoubleSubNode(bo);
+            case TokenLib.MUL:
+                return new DoubleMulNode(bo);
+            case TokenLib.DIV:
+                return new DoubleDivNode(bo);
+            case TokenLib.MOD:
+                return new DoubleModNode(bo);
+            case TokenLib.LT:
+                return new DoubleLessThanNode(bo);
+            case TokenLib.GT:
+                return new DoubleGreaterThanNode(bo);
+            case TokenLib.LE:
+                return new DoubleLessEqualNode(bo);
+            case TokenLib.GE:
+                return new DoubleGreaterEqualNode(bo);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Moves an operator child that still specializes from one parent to another.
+     */
+    static void reparent(final Node child, final InternalNode from, final InternalNode to) {
+        if (child instanceof BinaryOperator && ((BinaryOperator) child).parent == from) {
+            ((BinaryOperator) child).parent = to;
+        } else if (child instanceof SpecializedBinary && ((SpecializedBinary) child).parent == from) {
+            ((SpecializedBinary) child).parent = to;
+        }
+    }
+}
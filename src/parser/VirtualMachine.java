@@ -0,0 +1,181 @@
+package parser;
+
+import interpreter.Environment;
+import interpreter.Function;
+import interpreter.ParameterPair;
+import interpreter.SplException;
+import interpreter.Variable;
+import tokenizer.Position;
+import tokenizer.TokenLib;
+
+/**
+ * Runs {@link Bytecode} in one dispatch loop per call. The registers of a call are the slots of its
+ * {@link Environment}, so functions, closures and globals behave as in the other engines.
+ */
+class VirtualMachine {
+
+    private final int[] code;
+
+    private final Object[] constants;
+
+    VirtualMachine(final Bytecode bytecode) {
+        this.code = bytecode.code;
+        this.constants = bytecode.constants;
+    }
+
+    Object run(int pc, final Environment env) {
+        final int[] code = this.code;
+        final Object[] regs = env.getSlots();
+        while (true) {
+            int op = code[pc];
+            int a = code[pc + 1];
+            int b = code[pc + 2];
+            int c = code[pc + 3];
+            pc += Bytecode.WIDTH;
+            switch (op) {
+                case TokenLib.ADD: {
+                    Object left = regs[b], right = regs[c];
+                    regs[a] = left instanceof Long && right instanceof Long ?
+                            (Object) ((Long) left + (Long) right) : Arithmetic.binary(left, right, op);
+                    break;
+                }
+                case TokenLib.SUB: {
+                    Object left = regs[b], right = regs[c];
+                    regs[a] = left instanceof Long && right instanceof Long ?
+                            (Object) ((Long) left - (Long) right) : Arithmetic.binary(left, right, op);
+                    break;
+                }
+                case TokenLib.MUL: {
+                    Object left = regs[b], right = regs[c];
+                    regs[a] = left instanceof Long && right instanceof Long ?
+                            (Object) ((Long) left * (Long) right) : Arithmetic.binary(left, right, op);
+                    break;
+                }
+                case TokenLib.LT: {
+                    Object left = regs[b], right = regs[c];
+                    regs[a] = left instanceof Long && right instanceof Long ?
+                            (Object) ((Long) left < (Long) right) : Arithmetic.binary(left, right, op);
+                    break;
+                }
+                case TokenLib.GT: {
+                    Object left = regs[b], right = regs[c];
+                    regs[a] = left instanceof Long && right instanceof Long ?
+                            (Object) ((Long) left > (Long) right) : Arithmetic.binary(left, right, op);
+                    break;
+                }
+                case TokenLib.LE: {
+                    Object left = regs[b], right = regs[c];
+                    regs[a] = left instanceof Long && right instanceof Long ?
+                            (Object) ((Long) left <= (Long) right) : Arithmetic.binary(left, right, op);
+                    break;
+                }
+                case TokenLib.GE: {
+                    Object left = regs[b], right = regs[c];
+                    regs[a] = left instanceof Long && right instanceof Long ?
+                            (Object) ((Long) left >= (Long) right) : Arithmetic.binary(left, right, op);
+                    break;
+                }
+                case TokenLib.DIV:
+                case TokenLib.MOD:
+                case TokenLib.EQ:
+                case TokenLib.NEQ:
+                case TokenLib.AND:
+                case TokenLib.OR:
+                case TokenLib.BAND:
+                case TokenLib.XOR:
+                case TokenLib.BOR:
+                case TokenLib.LSHIFT:
+                case TokenLib.RSHIFT:
+                case TokenLib.ID_EQ:
+                case TokenLib.ID_NEQ:
+                case TokenLib.INSTANCEOF:
+                    regs[a] = Arithmetic.binary(regs[b], regs[c], op);
+                    break;
+                case Bytecode.LOAD_CONST:
+                    regs[a] = constants[b];
+                    break;
+                case Bytecode.LOAD_NIL:
+                    regs[a] = null;
+                    break;
+                case Bytecode.MOVE:
+                    regs[a] = regs[b];
+                    break;
+                case Bytecode.LOAD_VAR:
+                    regs[a] = env.get((Variable) constants[b], (Position) constants[c]);
+                    break;
+                case Bytecode.STORE_VAR:
+                    env.assign((Variable) constants[a], regs[b], (Position) constants[c]);
+                    break;
+                case Bytecode.DEFINE_VAR:
+                    env.defineVar((Variable) constants[a], regs[b], (Position) constants[c]);
+                    break;
+                case Bytecode.JUMP:
+                    pc = a;
+                    break;
+                case Bytecode.JUMP_IF_FALSE:
+                    if (!(Boolean) regs[a]) pc = b;
+                    break;
+                case Bytecode.JUMP_IF_BROKEN:
+                    if (env.broken) pc = a;
+                    break;
+                case Bytecode.CLEAR_BROKEN:
+                    env.broken = false;
+                    break;
+                case Bytecode.BREAK:
+                    env.breakLoop();
+                    break;
+                case Bytecode.CONTINUE:
+                    env.pause();
+                    break;
+                case Bytecode.RESUME:
+                    env.resume();
+                    break;
+                case Bytecode.CLEAR:
+                    env.clearSlots(a, b);
+                    break;
+                case Bytecode.DEF:
+                    regs[a] = def((Bytecode.FunctionTemplate) constants[b], c, regs, env);
+                    break;
+                case Bytecode.CALL:
+                    regs[a] = call((Bytecode.CallSite) constants[b], c, regs, env);
+                    break;
+                case Bytecode.RETURN:
+                    return regs[a];
+                case Bytecode.ABSTRACT:
+                    throw new SplException("Method not implemented.");
+                default:
+                    throw new SplException(String.format("Unknown opcode %d at %d", op, pc - Bytecode.WIDTH));
+            }
+        }
+    }
+
+    private Function def(final Bytecode.FunctionTemplate template, final int defaults, final Object[] regs,
+                         final Environment env) {
+        Function function = new Function(template.position, env, template.variableCount);
+        ParameterPair[] pairs = new ParameterPair[template.params.length];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = new ParameterPair(template.params[i], template.hasDefault[i] ? regs[defaults + i] : null);
+        }
+        function.params = pairs;
+        function.entry = template.entry;
+        return function;
+    }
+
+    private Object call(final Bytecode.CallSite site, final int args, final Object[] regs, final Environment env) {
+        Function function = (Function) env.get(site.function, site.position);
+        Environment callScope = function.newCallScope(env);
+        for (int i = 0; i < function.params.length; i++) {
+            Object arg;
+            if (i < site.argCount) {
+                arg = regs[args + i];
+            } else {
+                arg = function.params[i].defaultValue;
+                if (arg == null) {
+                    throw new SplException(String.format("Missing argument(s) in function '%s'", site.name));
+                }
+            }
+            callScope.defineVar(function.params[i].variable, arg, site.position);
+        }
+        return run(function.entry, callScope);
+    }
+}
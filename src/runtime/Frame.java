@@ -0,0 +1,25 @@
+package runtime;
+
+/**
+ * The slots of one call of a compiled function, or of the script itself, linked to the frame the function was
+ * defined in.
+ */
+public final class Frame {
+
+    public final Object[] slots;
+
+    public final Frame outer;
+
+    public final Frame global;
+
+    /**
+     * Set by <code>break</code> and cleared by the loop it ends, as on the interpreted frames.
+     */
+    public boolean broken;
+
+    public Frame(final int size, final Frame outer) {
+        this.slots = new Object[size];
+        this.outer = outer;
+        this.global = outer == null ? this : outer.global;
+    }
+}
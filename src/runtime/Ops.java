@@ -0,0 +1,58 @@
+package runtime;
+
+import interpreter.NullPointer;
+import interpreter.SplException;
+import parser.Arithmetic;
+
+import java.util.Arrays;
+
+/**
+ * Operations that generated code calls, matching what the interpreter does for the same nodes.
+ */
+public final class Ops {
+
+    public final static NullPointer NULL = new NullPointer();
+
+    private Ops() {
+    }
+
+    public static Object binary(final Object left, final Object right, final int code) {
+        return Arithmetic.binary(left, right, code);
+    }
+
+    /**
+     * Reads a slot of the global frame, which must have been defined.
+     */
+    public static Object global(final Frame frame, final int index, final String name, final String file,
+                                final int line) {
+        Object value = frame.global.slots[index];
+        if (value == null) undefined(name, file, line);
+        return value;
+    }
+
+    /**
+     * Fails for a name that was never defined. Declared to return a value so that it can stand for a read.
+     */
+    public static Object undefined(final String name, final String file, final int line) {
+        throw new SplException(String.format("Name '%s' is not defined, in '%s', at line %d", name, file, line));
+    }
+
+    /**
+     * Tests a condition, failing as the interpreter does when it is not a boolean.
+     */
+    public static boolean isTrue(final Object value) {
+        return (Boolean) value;
+    }
+
+    public static Object call(final Object function, final Object[] args) {
+        return ((SplFunction) function).call(args);
+    }
+
+    public static void clear(final Frame frame, final int from, final int to) {
+        Arrays.fill(frame.slots, from, to, null);
+    }
+
+    public static Object notImplemented() {
+        throw new SplException("Method not implemented.");
+    }
+}
@@ -0,0 +1,63 @@
+package runtime;
+
+import interpreter.SplException;
+
+/**
+ * A function value of a compiled script. Calling it binds the arguments into a new frame and runs the generated
+ * method of its body.
+ */
+public final class SplFunction {
+
+    /**
+     * The generated method of a function body.
+     */
+    public interface Body {
+
+        Object run(Frame frame);
+    }
+
+    private final String name;
+
+    private final Frame outer;
+
+    private final int frameSize;
+
+    /**
+     * Frame slot of each parameter.
+     */
+    private final int[] params;
+
+    /**
+     * Default value of each parameter, or <code>null</code> if it has none.
+     */
+    private final Object[] defaults;
+
+    private final Body body;
+
+    public SplFunction(final String name, final Frame outer, final int frameSize, final int[] params,
+                       final Object[] defaults, final Body body) {
+        this.name = name;
+        this.outer = outer;
+        this.frameSize = frameSize;
+        this.params = params;
+        this.defaults = defaults;
+        this.body = body;
+    }
+
+    public Object call(final Object[] args) {
+        Frame frame = new Frame(frameSize, outer);
+        for (int i = 0; i < params.length; i++) {
+            Object arg;
+            if (i < args.length) {
+                arg = args[i];
+            } else {
+                arg = defaults[i];
+                if (arg == null) {
+                    throw new SplException(String.format("Missing argument(s) in function '%s'", name));
+                }
+            }
+            frame.slots[params[i]] = arg;
+        }
+        return body.run(frame);
+    }
+}
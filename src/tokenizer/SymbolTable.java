@@ -0,0 +1,96 @@
+package tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * Interns identifiers into dense integer ids, starting from <code>0</code>.
+ * <p>
+ * The keyword code of each name is computed once, when it is first interned. All methods are synchronized so
+ * that function bodies can be lexed on several threads.
+ */
+public class SymbolTable {
+
+    private String[] names = new String[64];
+
+    private int[] hashes = new int[64];
+
+    private int[] codes = new int[64];
+
+    private int count;
+
+    /**
+     * Open addressing table of <code>id + 1</code>, where <code>0</code> marks an empty bucket.
+     */
+    private int[] buckets = new int[128];
+
+    public synchronized int intern(final char[] chars, final int start, final int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) hash = 31 * hash + chars[i];
+
+        int mask = buckets.length - 1;
+        int bucket = spread(hash) & mask;
+        int entry;
+        while ((entry = buckets[bucket]) != 0) {
+            int id = entry - 1;
+            if (hashes[id] == hash && sameChars(names[id], chars, start, length)) return id;
+            bucket = (bucket + 1) & mask;
+        }
+        return add(new String(chars, start, length), hash, TokenLib.keywordCode(chars, start, length), bucket);
+    }
+
+    public synchronized int intern(final String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    public synchronized String name(final int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns the {@link TokenLib} code of a reserved word, or {@link TokenLib#NONE}.
+     */
+    public synchronized int code(final int id) {
+        return codes[id];
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private int add(final String name, final int hash, final int code, final int bucket) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+            codes = Arrays.copyOf(codes, count * 2);
+        }
+        int id = count++;
+        names[id] = name;
+        hashes[id] = hash;
+        codes[id] = code;
+        buckets[bucket] = id + 1;
+        if (count * 2 > buckets.length) rehash();
+        return id;
+    }
+
+    private void rehash() {
+        buckets = new int[buckets.length * 2];
+        int mask = buckets.length - 1;
+        for (int id = 0; id < count; id++) {
+            int bucket = spread(hashes[id]) & mask;
+            while (buckets[bucket] != 0) bucket = (bucket + 1) & mask;
+            buckets[bucket] = id + 1;
+        }
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameChars(final String name, final char[] chars, final int start, final int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[start + i]) return false;
+        }
+        return true;
+    }
+}
@@ -2,7 +2,11 @@ package tokenizer;
 
 public class Token {
 
-    public final static String EOL = ";";
+    public final static int EOF = 0;
+    public final static int IDENTIFIER = 1;
+    public final static int INTEGER = 2;
+    public final static int FLOAT = 3;
+    public final static int LITERAL = 4;
 
     private Position position;
 
@@ -10,8 +14,19 @@ public class Token {
         this.position = pos;
     }
 
-    static Token eofToken(String fileName) {
-        return new Token(new Position(-1, fileName));
+    static Token create(final int kind, final String text, final Position pos) {
+        switch (kind) {
+            case IDENTIFIER:
+                return new IdToken(pos, text);
+            case INTEGER:
+                return new NumToken(pos, text, false);
+            case FLOAT:
+                return new NumToken(pos, text, true);
+            case LITERAL:
+                return new LiteralToken(pos, text);
+            default:
+                return new Token(new Position(-1, pos.getFileName()));
+        }
     }
 
     @Override
@@ -117,6 +132,11 @@ class LiteralToken extends Token {
         this.literal = literal;
     }
 
+    @Override
+    public String getValue() {
+        return literal;
+    }
+
     @Override
     public boolean isLiteral() {
         return true;
@@ -1,159 +1,280 @@
 package tokenizer;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+/**
+ * Static classification tables of keywords and operators.
+ * <p>
+ * Every symbol and reserved word has an int code, assigned in ranges so that categories are simple range
+ * checks. The lexer computes the code once per token; {@link #NONE} marks ordinary names and literals.
+ */
+public abstract class TokenLib {
 
-public class TokenLib {
+    public final static int NONE = 0;
 
-    private final static String[] SYMBOLS = new String[]{"{", "}", ".", ","};
+    // binary operators
+    public final static int ADD = 1;
+    public final static int SUB = 2;
+    public final static int MUL = 3;
+    public final static int DIV = 4;
+    public final static int MOD = 5;
+    public final static int LT = 6;
+    public final static int GT = 7;
+    public final static int LE = 8;
+    public final static int GE = 9;
+    public final static int EQ = 10;
+    public final static int NEQ = 11;
+    public final static int AND = 12;
+    public final static int OR = 13;
+    public final static int BAND = 14;
+    public final static int XOR = 15;
+    public final static int BOR = 16;
+    public final static int LSHIFT = 17;
+    public final static int RSHIFT = 18;
+    public final static int ID_EQ = 19;
+    public final static int ID_NEQ = 20;
+    public final static int INSTANCEOF = 21;
 
-    private final static String[] MIDDLE = new String[]{"(", ")", "[", "]"};
+    // binary operators with assignment, in the same order as their plain forms
+    public final static int ADD_EQ = 22;
+    public final static int SUB_EQ = 23;
+    public final static int MUL_EQ = 24;
+    public final static int DIV_EQ = 25;
+    public final static int MOD_EQ = 26;
+    public final static int BAND_EQ = 27;
+    public final static int XOR_EQ = 28;
+    public final static int BOR_EQ = 29;
+    public final static int LSHIFT_EQ = 30;
+    public final static int RSHIFT_EQ = 31;
 
-    private final static String[] OTHERS = new String[]{"=", "@", ":"};
+    // unary operators, NEG is never lexed but assigned by the parser to a prefix '-'
+    public final static int NOT = 32;
+    public final static int NEG = 33;
 
-    private final static String[] LAZY = {"&&", "||"};
-    private final static String[] OMITS = {"\n", "\r", "\t", " "};
-    private final static String[] OP_EQ = {"+", "-", "*", "/", "%", "&", "^", "|", "<<", ">>"};
-    private final static String[] NO_BUILD_LINE = {"else", "catch", "finally"};
+    // symbols
+    public final static int LBRACE = 34;
+    public final static int RBRACE = 35;
+    public final static int DOT = 36;
+    public final static int COMMA = 37;
+    public final static int LPAREN = 38;
+    public final static int RPAREN = 39;
+    public final static int LBRACKET = 40;
+    public final static int RBRACKET = 41;
+    public final static int ASSIGN = 42;
+    public final static int AT = 43;
+    public final static int COLON = 44;
+    public final static int EOL = 45;
+    public final static int ARROW = 46;
 
-    private final static String[] RESERVED = {"class", "function", "def", "if", "else", "new", "extends",
-            "return", "break", "continue", "true", "false", "null", "operator", "while", "for", "import",
-            "throw", "try", "catch", "finally", "abstract", "const", "var", "let"};
+    // reserved words
+    public final static int CLASS = 47;
+    public final static int FUNCTION = 48;
+    public final static int DEF = 49;
+    public final static int IF = 50;
+    public final static int ELSE = 51;
+    public final static int NEW = 52;
+    public final static int EXTENDS = 53;
+    public final static int RETURN = 54;
+    public final static int BREAK = 55;
+    public final static int CONTINUE = 56;
+    public final static int TRUE = 57;
+    public final static int FALSE = 58;
+    public final static int NULL = 59;
+    public final static int OPERATOR = 60;
+    public final static int WHILE = 61;
+    public final static int FOR = 62;
+    public final static int IMPORT = 63;
+    public final static int THROW = 64;
+    public final static int TRY = 65;
+    public final static int CATCH = 66;
+    public final static int FINALLY = 67;
+    public final static int ABSTRACT = 68;
+    public final static int CONST = 69;
+    public final static int VAR = 70;
+    public final static int LET = 71;
 
-    private final static String[][] BINARY_OPERATORS = {{"+", "add"}, {"-", "sub"}, {"*", "mul"}, {"/", "div"},
-            {"%", "mod"}, {"<", "lt"}, {">", "gt"}, {"<=", "le"}, {">=", "ge"}, {"==", "eq"}, {"!=", "neq"},
-            {"&&", "and"}, {"||", "or"}, {"&", "band"}, {"^", "xor"}, {"|", "bor"}, {"<<", "lshift"}, {">>", "rshift"},
-            {"===", ""}, {"!==", ""}, {"instanceof", ""}};
+    private final static int CODE_COUNT = 72;
 
-    private final static String[][] UNARY_OPERATORS = {{"!", "not"}};
+    private final static String[] SPELLINGS = {
+            null,
+            "+", "-", "*", "/", "%", "<", ">", "<=", ">=", "==", "!=", "&&", "||", "&", "^", "|", "<<", ">>",
+            "===", "!==", "instanceof",
+            "+=", "-=", "*=", "/=", "%=", "&=", "^=", "|=", "<<=", ">>=",
+            "!", "neg",
+            "{", "}", ".", ",", "(", ")", "[", "]", "=", "@", ":", ";", "=>",
+            "class", "function", "def", "if", "else", "new", "extends", "return", "break", "continue", "true",
+            "false", "null", "operator", "while", "for", "import", "throw", "try", "catch", "finally", "abstract",
+            "const", "var", "let"
+    };
 
-    private final static String[][] ESCAPES = {};
+    private final static int[] PRECEDENCE = new int[CODE_COUNT];
 
-    private static HashSet<String> symbols, middle, others, reserved, lazy, omits, opEq, noBuildLine;
-
-    private static HashMap<String, String> binaryOperators, unaryOperators, escapes;
-
-    private static HashMap<String, Integer> precedenceTable;
-
-    @SuppressWarnings("unchecked")
-    public static void init() {
+    static {
+        setPrecedence(500, DOT, ARROW);
+        setPrecedence(200, NOT, NEG);
+        setPrecedence(100, MUL, DIV, MOD);
+        setPrecedence(50, ADD, SUB);
+        setPrecedence(40, LSHIFT, RSHIFT);
+        setPrecedence(25, LT, GT, LE, GE, INSTANCEOF);
+        setPrecedence(20, EQ, NEQ, ID_EQ, ID_NEQ);
+        setPrecedence(12, BAND);
+        setPrecedence(11, XOR);
+        setPrecedence(10, BOR);
+        setPrecedence(5, AND, OR);
+        setPrecedence(2, ADD_EQ, SUB_EQ, MUL_EQ, DIV_EQ, MOD_EQ, BAND_EQ, XOR_EQ, BOR_EQ, LSHIFT_EQ, RSHIFT_EQ);
+        setPrecedence(1, RETURN, THROW);
+    }
 
-        HashSet<String>[] sets = new HashSet[]{symbols, middle, others, reserved, lazy, omits, opEq, noBuildLine};
-        String[][] names = {SYMBOLS, MIDDLE, OTHERS, RESERVED, LAZY, OMITS, OP_EQ, NO_BUILD_LINE};
+    private static void setPrecedence(final int precedence, final int... codes) {
+        for (int code : codes) PRECEDENCE[code] = precedence;
+    }
 
-        for (int i = 0; i < sets.length; i++) {
-            sets[i] = new HashSet<>();
-            sets[i].addAll(Arrays.asList(names[i]));
-        }
-        symbols = sets[0];
-        middle = sets[1];
-        others = sets[2];
-        reserved = sets[3];
-        lazy = sets[4];
-        omits = sets[5];
-        opEq = sets[6];
-        noBuildLine = sets[7];
-
-        HashMap<String, String>[] maps = new HashMap[]{binaryOperators, unaryOperators, escapes};
-        String[][][] entries = {BINARY_OPERATORS, UNARY_OPERATORS, ESCAPES};
-
-        for (int i = 0; i < maps.length; i++) {
-            maps[i] = new HashMap<>();
-            for (String[] arr : entries[i]) {
-                maps[i].put(arr[0], arr[1]);
-            }
+    /**
+     * Classifies a run of symbol characters, returning {@link #NONE} if it is not a known symbol.
+     */
+    static int symbolCode(final char[] s, final int start, final int length) {
+        char c0 = s[start];
+        switch (length) {
+            case 1:
+                switch (c0) {
+                    case '+': return ADD;
+                    case '-': return SUB;
+                    case '*': return MUL;
+                    case '/': return DIV;
+                    case '%': return MOD;
+                    case '<': return LT;
+                    case '>': return GT;
+                    case '&': return BAND;
+                    case '^': return XOR;
+                    case '|': return BOR;
+                    case '!': return NOT;
+                    case '{': return LBRACE;
+                    case '}': return RBRACE;
+                    case '.': return DOT;
+                    case ',': return COMMA;
+                    case '(': return LPAREN;
+                    case ')': return RPAREN;
+                    case '[': return LBRACKET;
+                    case ']': return RBRACKET;
+                    case '=': return ASSIGN;
+                    case '@': return AT;
+                    case ':': return COLON;
+                    case ';': return EOL;
+                    default: return NONE;
+                }
+            case 2:
+                char c1 = s[start + 1];
+                if (c1 == '=') {
+                    switch (c0) {
+                        case '<': return LE;
+                        case '>': return GE;
+                        case '=': return EQ;
+                        case '!': return NEQ;
+                        case '+': return ADD_EQ;
+                        case '-': return SUB_EQ;
+                        case '*': return MUL_EQ;
+                        case '/': return DIV_EQ;
+                        case '%': return MOD_EQ;
+                        case '&': return BAND_EQ;
+                        case '^': return XOR_EQ;
+                        case '|': return BOR_EQ;
+                        default: return NONE;
+                    }
+                } else if (c0 == c1) {
+                    switch (c0) {
+                        case '&': return AND;
+                        case '|': return OR;
+                        case '<': return LSHIFT;
+                        case '>': return RSHIFT;
+                        default: return NONE;
+                    }
+                } else {
+                    return c0 == '=' && c1 == '>' ? ARROW : NONE;
+                }
+            case 3:
+                if (s[start + 1] == '=' && s[start + 2] == '=') {
+                    if (c0 == '=') return ID_EQ;
+                    if (c0 == '!') return ID_NEQ;
+                } else if (s[start + 2] == '=' && s[start + 1] == c0) {
+                    if (c0 == '<') return LSHIFT_EQ;
+                    if (c0 == '>') return RSHIFT_EQ;
+                }
+                return NONE;
+            default:
+                return NONE;
         }
-
-        binaryOperators = maps[0];
-        unaryOperators = maps[1];
-        escapes = maps[2];
-
-        initPrecedence();
     }
 
-    private static void initPrecedence() {
-        precedenceTable = new HashMap<>();
-        precedenceTable.put("+", 50);
-        precedenceTable.put("-", 50);
-        precedenceTable.put("*", 100);
-        precedenceTable.put("/", 100);
-        precedenceTable.put("%", 100);
-        precedenceTable.put(">", 25);
-        precedenceTable.put("<", 25);
-        precedenceTable.put(">=", 25);
-        precedenceTable.put("<=", 25);
-        precedenceTable.put("==", 20);
-        precedenceTable.put("!=", 20);
-        precedenceTable.put("===", 20);
-        precedenceTable.put("!==", 20);
-        precedenceTable.put("&&", 5);
-        precedenceTable.put("||", 5);
-        precedenceTable.put("&", 12);
-        precedenceTable.put("^", 11);
-        precedenceTable.put("|", 10);
-        precedenceTable.put("<<", 40);
-        precedenceTable.put(">>", 40);
-        precedenceTable.put(".", 500);
-        precedenceTable.put("!", 200);
-        precedenceTable.put("neg", 200);
-        precedenceTable.put("return", 1);
-        precedenceTable.put("throw", 1);
-        precedenceTable.put("instanceof", 25);
-        precedenceTable.put("=>", 500);
-        precedenceTable.put("+=", 2);
-        precedenceTable.put("-=", 2);
-        precedenceTable.put("*=", 2);
-        precedenceTable.put("/=", 2);
-        precedenceTable.put("%=", 2);
-        precedenceTable.put("&=", 2);
-        precedenceTable.put("^=", 2);
-        precedenceTable.put("|=", 2);
-        precedenceTable.put("<<=", 2);
-        precedenceTable.put(">>=", 2);
+    /**
+     * Classifies an identifier, returning {@link #NONE} for names that are not reserved.
+     */
+    static int keywordCode(final char[] s, final int start, final int length) {
+        switch (length) {
+            case 2:
+                return matchAny(s, start, length, IF);
+            case 3:
+                return matchAny(s, start, length, DEF, NEW, FOR, TRY, VAR, LET);
+            case 4:
+                return matchAny(s, start, length, ELSE, TRUE, NULL);
+            case 5:
+                return matchAny(s, start, length, CLASS, BREAK, FALSE, WHILE, THROW, CATCH, CONST);
+            case 6:
+                return matchAny(s, start, length, RETURN, IMPORT);
+            case 7:
+                return matchAny(s, start, length, EXTENDS, FINALLY);
+            case 8:
+                return matchAny(s, start, length, FUNCTION, CONTINUE, OPERATOR, ABSTRACT);
+            case 10:
+                return matchAny(s, start, length, INSTANCEOF);
+            default:
+                return NONE;
+        }
     }
 
-    static boolean inAll(String s) {
-        return symbols.contains(s) || others.contains(s) || middle.contains(s) || binaryOperators.containsKey(s) ||
-                unaryOperators.containsKey(s);
+    private static int matchAny(final char[] s, final int start, final int length, final int... candidates) {
+        outer:
+        for (int code : candidates) {
+            String spelling = SPELLINGS[code];
+            if (spelling.charAt(0) != s[start]) continue;
+            for (int i = 1; i < length; i++) {
+                if (spelling.charAt(i) != s[start + i]) continue outer;
+            }
+            return code;
+        }
+        return NONE;
     }
 
-    static boolean inOpEq(String fullSymbol) {
-        String sub = fullSymbol.substring(0, fullSymbol.length() - 1);
-        return opEq.contains(sub);
+    public static String spelling(final int code) {
+        return SPELLINGS[code];
     }
 
-    static boolean inOmits(String s) {
-        return omits.contains(s);
+    public static boolean isReserved(final int code) {
+        return code >= CLASS;
     }
 
-    public static boolean isReserved(String s) {
-        return reserved.contains(s);
+    public static boolean inNoBuildLine(final int code) {
+        return code == ELSE || code == CATCH || code == FINALLY;
     }
 
-    public static boolean inNoBuildLine(String s) {
-        return noBuildLine.contains(s);
+    public static boolean isNormalUnaryOperator(final int code) {
+        return code == NOT;
     }
 
-    public static boolean isNormalUnaryOperator(String s) {
-        return unaryOperators.containsKey(s);
+    public static boolean isBinaryOperator(final int code) {
+        return code >= ADD && code <= INSTANCEOF;
     }
 
-    public static boolean isBinaryOperator(String s) {
-        return binaryOperators.containsKey(s);
+    public static boolean isSymbol(final int code) {
+        return code == LBRACE || code == RBRACE || code == DOT || code == COMMA;
     }
 
-    public static boolean isSymbol(String s) {
-        return symbols.contains(s);
+    public static boolean isOpEq(final int code) {
+        return code >= ADD_EQ && code <= RSHIFT_EQ;
     }
 
-    public static boolean isOpEq(String full) {
-        String op = full.substring(0, full.length() - 1);
-        return opEq.contains(op);
+    public static boolean isLazy(final int code) {
+        return code == AND || code == OR;
     }
 
-    public static int getPrecedence(String op) {
-        return precedenceTable.get(op);
+    public static int getPrecedence(final int code) {
+        return PRECEDENCE[code];
     }
 }
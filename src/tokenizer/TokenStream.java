@@ -0,0 +1,56 @@
+package tokenizer;
+
+/**
+ * A pull-based source of tokens with a bounded lookahead window.
+ * <p>
+ * Tokens are addressed relative to the current one: <code>0</code> is the current token, <code>-1</code> the
+ * previous one and <code>1</code> to {@link #LOOKAHEAD} the tokens not yet consumed.
+ */
+public interface TokenStream {
+
+    int LOOKAHEAD = 4;
+
+    int NO_SYMBOL = -1;
+
+    /**
+     * Makes the next token current. Stays on the eof token once the source is exhausted.
+     */
+    void next() throws LexerException;
+
+    /**
+     * Returns one of the kind codes declared in {@link Token}.
+     */
+    int kind(int ahead) throws LexerException;
+
+    String text(int ahead) throws LexerException;
+
+    /**
+     * Returns the interned id of a name token, or {@link #NO_SYMBOL} for any other token.
+     */
+    int symbol(int ahead) throws LexerException;
+
+    /**
+     * Returns the {@link TokenLib} code of a symbol or reserved word, or {@link TokenLib#NONE}.
+     */
+    int code(int ahead) throws LexerException;
+
+    /**
+     * Returns whether the token is an identifier or symbol spelled exactly as <code>text</code>.
+     */
+    boolean matches(int ahead, String text) throws LexerException;
+
+    Position position(int ahead) throws LexerException;
+
+    /**
+     * Returns the source offset of the first character of the token.
+     */
+    int offset(int ahead) throws LexerException;
+
+    /**
+     * Creates an independent stream over the source between two offsets, keeping the line numbers of the
+     * whole source.
+     */
+    TokenStream slice(int start, int end);
+
+    SymbolTable getSymbolTable();
+}
@@ -1,22 +1,67 @@
 package tokenizer;
 
 import util.TypeChecker;
-import util.Utility;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-public class Tokenizer {
+public class Tokenizer implements TokenStream {
 
-    private ArrayList<Token> tokens;
+    /**
+     * Ring capacity, enough for the previous token, the current token and {@link #LOOKAHEAD} more.
+     */
+    private final static int CAPACITY = 8;
+    private final static int MASK = CAPACITY - 1;
 
-    private TypeChecker typeChecker = new TypeChecker();
+    private final int[] kinds = new int[CAPACITY];
+    private final int[] starts = new int[CAPACITY];
+    private final int[] lengths = new int[CAPACITY];
+    private final int[] symbols = new int[CAPACITY];
+    private final int[] codes = new int[CAPACITY];
+
+    private SymbolTable symbolTable = new SymbolTable();
+
+    private int current;
+
+    private int available;
 
     private String fileName;
 
+    private char[] source;
+
+    private int sourceStart;
+
+    /**
+     * Exclusive end offset of the source in {@link #source}.
+     */
+    private int sourceLength;
+
+    private int index;
+
+    /**
+     * Source offset of the first character of each line, filled as the lexer passes line breaks.
+     */
+    private int[] lineStarts = new int[64];
+
+    private int lineCount;
+
+    private int lineCursor;
+
+    /**
+     * Number of source lines before {@link #sourceStart}, non-zero for slices.
+     */
+    private int lineBase;
+
+    private Position linePosition;
+
     public Tokenizer() {
     }
 
@@ -24,163 +69,353 @@ public class Tokenizer {
         this.fileName = fileName;
     }
 
-    public void tokenize(final BufferedReader inputStream) throws IOException, LexerException {
-        tokens = new ArrayList<>();
+    public void setSymbolTable(final SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    @Override
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * Maps the file into memory and decodes it with <code>charset</code> in one step.
+     * <p>
+     * Malformed input is reported as an exception naming the file, the charset and the byte offset, rather
+     * than replaced.
+     */
+    public void load(final Path path, final Charset charset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                load(charset.newDecoder().decode(bytes));
+            } catch (CharacterCodingException e) {
+                // the decoder leaves the buffer at the start of the bad input
+                throw new IOException(String.format("Cannot decode '%s' as %s at byte %d", path,
+                        charset.name(), bytes.position()), e);
+            }
+        }
+    }
+
+    /**
+     * Uses the remaining characters of <code>buffer</code> as the source. Array-backed buffers are scanned in
+     * place without copying.
+     */
+    public void load(final CharBuffer buffer) {
+        if (buffer.hasArray()) {
+            source = buffer.array();
+            sourceStart = buffer.arrayOffset() + buffer.position();
+        } else {
+            source = new char[buffer.remaining()];
+            buffer.duplicate().get(source);
+            sourceStart = 0;
+        }
+        sourceLength = sourceStart + buffer.remaining();
+        reset();
+    }
+
+    private void reset() {
+        index = sourceStart;
+        lineStarts[0] = sourceStart;
+        lineCount = 1;
+        lineCursor = 0;
+        linePosition = null;
+        current = 0;
+        available = 0;
+        Arrays.fill(kinds, Token.EOF);
+        Arrays.fill(symbols, NO_SYMBOL);
+        Arrays.fill(codes, TokenLib.NONE);
+    }
 
-        int lineNumber = 1;
-        String line;
-        boolean inDoc = false;
-        while ((line = inputStream.readLine()) != null) {
-            int lastIndex = tokens.size();
-            inDoc = proceedLine(line, new Position(lineNumber, fileName), inDoc);
-            findImport(lastIndex, tokens.size());
-            lineNumber++;
+    @Override
+    public void next() throws LexerException {
+        current = (current + 1) & MASK;
+        if (available == 0) {
+            scanToken(current);
+        } else {
+            available--;
         }
-        tokens.add(Token.eofToken(fileName));
     }
 
-    private boolean proceedLine(final String line, Position position, boolean inDoc) throws LexerException {
-        boolean inSingle = false, inDouble = false;
-        StringBuilder literal = new StringBuilder();
-        StringBuilder nonLiteral = new StringBuilder();
+    @Override
+    public int kind(final int ahead) throws LexerException {
+        return kinds[slot(ahead)];
+    }
+
+    @Override
+    public String text(final int ahead) throws LexerException {
+        int slot = slot(ahead);
+        if (symbols[slot] != NO_SYMBOL) return symbolTable.name(symbols[slot]);
+        return new String(source, starts[slot], lengths[slot]);
+    }
+
+    @Override
+    public int symbol(final int ahead) throws LexerException {
+        return symbols[slot(ahead)];
+    }
+
+    @Override
+    public int code(final int ahead) throws LexerException {
+        return codes[slot(ahead)];
+    }
 
-        int length = line.length();
+    @Override
+    public boolean matches(final int ahead, final String text) throws LexerException {
+        int slot = slot(ahead);
+        int length = lengths[slot];
+        if (kinds[slot] != Token.IDENTIFIER || length != text.length()) return false;
+        int start = starts[slot];
         for (int i = 0; i < length; i++) {
-            char ch = line.charAt(i);
-            if (!(inSingle || inDouble)) {
-                if (inDoc) {
-                    if (ch == '*' && i < length - 1 && line.charAt(i + 1) == '/') {
-                        inDoc = false;
-                        i += 2;
-                        continue;
-                    }
-                } else {
-                    if (ch == '/' && i < length - 1 && line.charAt(i + 1) == '*') {
-                        inDoc = true;
-                        i += 1;
-                    }
-                }
-            }
+            if (source[start + i] != text.charAt(i)) return false;
+        }
+        return true;
+    }
 
-            if (!inDoc) {
-                if (inDouble) {
-                    if (ch == '"') {
-                        inDouble = false;
-                        tokens.add(new LiteralToken(position, literal.toString()));
-                        literal.setLength(0);
-                        continue;
-                    }
-                } else if (inSingle) {
-                    if (ch == '\'') {
-                        inSingle = false;
-                        tokens.add(new LiteralToken(position, literal.toString()));
-                        literal.setLength(0);
-                        continue;
-                    }
-                } else {
-                    if (ch == '"') {
-                        inDouble = true;
-                        tokenizeLine(nonLiteral.toString(), position);
-                        nonLiteral.setLength(0);
-                        continue;
-                    } else if (ch == '\'') {
-                        inSingle = true;
-                        tokenizeLine(nonLiteral.toString(), position);
-                        nonLiteral.setLength(0);
-                        continue;
+    @Override
+    public Position position(final int ahead) throws LexerException {
+        int line = lineOf(starts[slot(ahead)]);
+        if (linePosition == null || linePosition.getLineNumber() != line) {
+            linePosition = new Position(line, fileName);
+        }
+        return linePosition;
+    }
+
+    @Override
+    public int offset(final int ahead) throws LexerException {
+        return starts[slot(ahead)];
+    }
+
+    @Override
+    public Tokenizer slice(final int start, final int end) {
+        Tokenizer copy = copy(start, end);
+        copy.lineBase = lineOf(start) - 1;
+        return copy;
+    }
+
+    private Tokenizer copy(final int start, final int end) {
+        Tokenizer copy = new Tokenizer();
+        copy.fileName = fileName;
+        copy.symbolTable = symbolTable;
+        copy.source = source;
+        copy.sourceStart = start;
+        copy.sourceLength = end;
+        copy.reset();
+        return copy;
+    }
+
+    /**
+     * Creates a token object for debugging.
+     */
+    public Token token(final int ahead) throws LexerException {
+        int slot = slot(ahead);
+        return Token.create(kinds[slot], text(ahead), position(ahead));
+    }
+
+    private int slot(final int ahead) throws LexerException {
+        if (ahead < -1 || ahead > LOOKAHEAD) {
+            throw new IndexOutOfBoundsException("Lookahead exceeds " + LOOKAHEAD);
+        }
+        while (available < ahead) {
+            available++;
+            scanToken((current + available) & MASK);
+        }
+        return (current + ahead) & MASK;
+    }
+
+    /**
+     * Returns the line number of a source offset, moving a cursor through the line table since offsets
+     * are mostly asked for in increasing order.
+     */
+    private int lineOf(final int offset) {
+        if (offset < lineStarts[lineCursor]) {
+            int found = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+            lineCursor = found >= 0 ? found : -found - 2;
+        } else {
+            while (lineCursor + 1 < lineCount && lineStarts[lineCursor + 1] <= offset) lineCursor++;
+        }
+        return lineBase + lineCursor + 1;
+    }
+
+    private void newLine(final int lineStart) {
+        if (lineCount == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        }
+        lineStarts[lineCount++] = lineStart;
+    }
+
+    private void setToken(final int slot, final int kind, final int start, final int length) {
+        kinds[slot] = kind;
+        starts[slot] = start;
+        lengths[slot] = length;
+        symbols[slot] = NO_SYMBOL;
+        codes[slot] = TokenLib.NONE;
+    }
+
+    /**
+     * Scans forward from the current index until exactly one token has been written to <code>slot</code>.
+     * <p>
+     * Writes an eof token if the end of source is reached before any token.
+     */
+    private void scanToken(final int slot) throws LexerException {
+        while (index < sourceLength) {
+            char ch = source[index];
+            int type = TypeChecker.charClass(ch);
+            switch (type) {
+                case TypeChecker.NEWLINE:
+                    newLine(index + 1);
+                    index++;
+                    break;
+                case TypeChecker.SPACE:
+                    index++;
+                    break;
+                case TypeChecker.LETTER:
+                    scanIdentifier(slot);
+                    return;
+                case TypeChecker.DIGIT:
+                    scanNumber(slot);
+                    return;
+                case TypeChecker.DOT:
+                    if (index + 1 < sourceLength && source[index + 1] >= '0' && source[index + 1] <= '9') {
+                        scanNumber(slot);
+                    } else {
+                        symbol(slot, index++, 1);
                     }
-                }
-
-                if (inSingle || inDouble) {
-                    literal.append(ch);
-                } else {
-                    nonLiteral.append(ch);
-                    int nonLiteralLength = nonLiteral.length();
-                    if (nonLiteralLength > 1 && nonLiteral.substring(nonLiteralLength - 2).equals("//")) {
-                        // Line comments
-                        tokenizeLine(nonLiteral.substring(nonLiteralLength - 2), position);
-                        nonLiteral.setLength(0);
-                        break;
+                    return;
+                case TypeChecker.QUOTE:
+                    scanLiteral(slot, ch);
+                    return;
+                case TypeChecker.SINGLE:
+                    symbol(slot, index++, 1);
+                    return;
+                case TypeChecker.INVALID:
+                    throw unknownSymbol(String.valueOf(ch));
+                default:
+                    if (ch == '/' && index + 1 < sourceLength) {
+                        char next = source[index + 1];
+                        if (next == '/') {
+                            skipLineComment();
+                            break;
+                        } else if (next == '*') {
+                            skipDocComment();
+                            break;
+                        }
                     }
-                }
+                    if (scanOperator(slot, type)) return;
+                    break;
             }
         }
+        setToken(slot, Token.EOF, sourceLength, 0);
+    }
 
-        if (nonLiteral.length() > 0) {
-            tokenizeLine(nonLiteral.toString(), position);
-            nonLiteral.setLength(0);
+    private void scanIdentifier(final int slot) {
+        int start = index++;
+        while (index < sourceLength && TypeChecker.isIdentifierPart(TypeChecker.charClass(source[index]))) {
+            index++;
         }
-
-        return inDoc;
+        setToken(slot, Token.IDENTIFIER, start, index - start);
+        int symbol = symbolTable.intern(source, start, index - start);
+        symbols[slot] = symbol;
+        codes[slot] = symbolTable.code(symbol);
     }
 
-    private void tokenizeLine(final String nonLiteral, final Position pos) throws LexerException {
-        ArrayList<String> lst = normalize(nonLiteral);
-        for (String part : lst) {
-            if (TypeChecker.isIdentifier(part)) {
-                tokens.add(new IdToken(pos, part));
-            } else if (TypeChecker.isDigits(part)) {
-                tokens.add(new NumToken(pos, part, false));
-            } else if (TypeChecker.isFloat(part)) {
-                tokens.add(new NumToken(pos, part, true));
-            } else if (TokenLib.inAll(part)) {
-                tokens.add(new IdToken(pos, part));
-            } else if (TokenLib.inOpEq(part)) {
-                tokens.add(new IdToken(pos, part));
-            } else if (part.equals(Token.EOL)) {
-                tokens.add(new IdToken(pos, part));
-            } else if (part.equals("=>")) {
+    private void scanNumber(final int slot) {
+        int start = index;
+        int kind = Token.INTEGER;
+        skipDigits();
+        if (index + 1 < sourceLength && source[index] == '.' &&
+                TypeChecker.charClass(source[index + 1]) == TypeChecker.DIGIT) {
+            kind = Token.FLOAT;
+            index++;
+            skipDigits();
+        }
+        setToken(slot, kind, start, index - start);
+    }
 
-            } else if (TokenLib.inOmits(part)) {
+    private void skipDigits() {
+        while (index < sourceLength && TypeChecker.charClass(source[index]) == TypeChecker.DIGIT) {
+            index++;
+        }
+    }
 
-            } else {
-                throw new LexerException(String.format("Unknown symbol: %s, in file %s, at line %d",
-                        part, pos.getFileName(), pos.getLineNumber()));
+    private void scanLiteral(final int slot, final char quote) throws LexerException {
+        int start = ++index;
+        while (index < sourceLength && source[index] != quote) {
+            if (source[index] == '\n') {
+                throw new LexerException(String.format("Unterminated literal, in file %s, at line %d",
+                        fileName, lineBase + lineCount));
             }
+            index++;
         }
+        if (index == sourceLength) {
+            throw new LexerException(String.format("Unterminated literal, in file %s, at line %d",
+                    fileName, lineBase + lineCount));
+        }
+        setToken(slot, Token.LITERAL, start, index - start);
+        index++;
     }
 
-    private ArrayList<String> normalize(final String line) {
-        ArrayList<String> lst = new ArrayList<>();
-        if (line.length() > 0) {
-            char lastChar = line.charAt(0);
-            char thisChar;
-            StringBuilder sb = new StringBuilder();
-            sb.append(lastChar);
-            for (int i = 1; i < line.length(); i++) {
-                thisChar = line.charAt(i);
-                if (typeChecker.concatenateAble(lastChar, thisChar)) {
-                    sb.append(thisChar);
-                } else {
-                    addString(lst, sb.toString());
-                    sb.setLength(0);
-                    sb.append(thisChar);
-                }
-                lastChar = thisChar;
-            }
-            addString(lst, sb.toString());
+    private boolean scanOperator(final int slot, int lastType) throws LexerException {
+        int start = index++;
+        while (index < sourceLength) {
+            int thisType = TypeChecker.charClass(source[index]);
+            if (!TypeChecker.concatenateAble(lastType, thisType)) break;
+            lastType = thisType;
+            index++;
         }
-        return lst;
+        int length = index - start;
+        if (length == 2 && source[start] == '=' && source[start + 1] == '>') return false;
+        symbol(slot, start, length);
+        return true;
     }
 
-    private void addString(ArrayList<String> list, final String s) {
-        if (s.length() > 1 && s.charAt(s.length() - 1) == '.') {
-            list.add(s.substring(0, s.length() - 1));
-            list.add(String.valueOf(s.charAt(s.length() - 1)));
-        } else {
-            list.add(s);
+    private void symbol(final int slot, final int start, final int length) throws LexerException {
+        int code = TokenLib.symbolCode(source, start, length);
+        if (code == TokenLib.NONE) {
+            throw unknownSymbol(new String(source, start, length));
         }
+        setToken(slot, Token.IDENTIFIER, start, length);
+        codes[slot] = code;
     }
 
-    private void findImport(int lastIndex, int currentIndex) {
+    private void skipLineComment() {
+        while (index < sourceLength && source[index] != '\n') index++;
+    }
 
+    private void skipDocComment() {
+        index += 2;
+        while (index < sourceLength) {
+            char ch = source[index];
+            if (ch == '*' && index + 1 < sourceLength && source[index + 1] == '/') {
+                index += 2;
+                return;
+            } else if (ch == '\n') {
+                newLine(index + 1);
+            }
+            index++;
+        }
     }
 
-    public void printTokens() {
-        System.out.println(tokens);
+    private LexerException unknownSymbol(final String part) {
+        return new LexerException(String.format("Unknown symbol: %s, in file %s, at line %d",
+                part, fileName, lineBase + lineCount));
     }
 
-    public ArrayList<Token> getTokens() {
+    /**
+     * Scans the whole source in a separate pass, leaving the stream position untouched.
+     */
+    public ArrayList<Token> getTokens() throws LexerException {
+        Tokenizer copy = copy(sourceStart, sourceLength);
+        copy.lineBase = lineBase;
+
+        ArrayList<Token> tokens = new ArrayList<>();
+        do {
+            copy.next();
+            tokens.add(copy.token(0));
+        } while (copy.kind(0) != Token.EOF);
         return tokens;
     }
+
+    public void printTokens() throws LexerException {
+        System.out.println(getTokens());
+    }
 }
@@ -0,0 +1,80 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing map from non-negative int keys to int values.
+ */
+public class IntMap {
+
+    public final static int NOT_FOUND = -1;
+
+    private int[] keys;
+
+    private int[] values;
+
+    private int size;
+
+    public IntMap() {
+        this(8);
+    }
+
+    public IntMap(final int capacity) {
+        int n = 4;
+        while (n < capacity * 2) n <<= 1;
+        keys = new int[n];
+        values = new int[n];
+        Arrays.fill(keys, -1);
+    }
+
+    public int get(final int key) {
+        int mask = keys.length - 1;
+        int i = spread(key) & mask;
+        int k;
+        while ((k = keys[i]) != -1) {
+            if (k == key) return values[i];
+            i = (i + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    public void put(final int key, final int value) {
+        int mask = keys.length - 1;
+        int i = spread(key) & mask;
+        int k;
+        while ((k = keys[i]) != -1) {
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) rehash();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys, oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, -1);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != -1) {
+                int i = spread(oldKeys[j]) & mask;
+                while (keys[i] != -1) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int spread(final int key) {
+        return key * 0x9E3779B9 >>> 7;
+    }
+}
@@ -1,146 +1,76 @@
 package util;
 
-import java.util.HashSet;
+public abstract class TypeChecker {
 
-public class TypeChecker {
+    public final static int INVALID = 0;
+    public final static int SPACE = 1;
+    public final static int NEWLINE = 2;
+    public final static int DIGIT = 3;
+    public final static int LETTER = 4;
+    public final static int QUOTE = 5;
+    public final static int DOT = 6;
+    public final static int SINGLE = 7;
+    public final static int ANGLE = 8;
+    public final static int EQUAL = 9;
+    public final static int AMPERSAND = 10;
+    public final static int BAR = 11;
+    public final static int BANG = 12;
+    public final static int CARET = 13;
+    public final static int ARITHMETIC = 14;
+
+    private final static int CLASS_COUNT = 15;
 
     private final static String DIGITS = "0123456789";
-    private final static String IDENTIFIER = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVEXYZ_";
-    private final static String ARITHMETIC = "+-*/%";
+    private final static String IDENTIFIER = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_";
 
-    private HashSet<TypeTuple> concatenateSet = new HashSet<>();
+    private final static byte[] CHAR_CLASS = new byte[128];
 
-    public TypeChecker() {
-        init();
-    }
+    private final static boolean[][] CONCATENATE = new boolean[CLASS_COUNT][CLASS_COUNT];
 
-    private void init() {
-        for (int i: new int[]{0, 1, 8, 9, 10, 11, 14}) {
-            concatenateSet.add(new TypeTuple(i, i));
-        }
-        concatenateSet.add(new TypeTuple(0, 12));
-        concatenateSet.add(new TypeTuple(1, 0));
-        concatenateSet.add(new TypeTuple(8, 9));
-        concatenateSet.add(new TypeTuple(9, 8));
-        concatenateSet.add(new TypeTuple(10, 9));
-        concatenateSet.add(new TypeTuple(11, 9));
-        concatenateSet.add(new TypeTuple(12, 0));
-        concatenateSet.add(new TypeTuple(15, 9));
-        concatenateSet.add(new TypeTuple(16, 9));
-        concatenateSet.add(new TypeTuple(17, 9));
-    }
+    static {
+        setClass(" \t\r", SPACE);
+        setClass("\n", NEWLINE);
+        setClass(DIGITS, DIGIT);
+        setClass(IDENTIFIER, LETTER);
+        setClass("\"'", QUOTE);
+        setClass(".", DOT);
+        setClass("{}()[],;@:", SINGLE);
+        setClass("<>", ANGLE);
+        setClass("=", EQUAL);
+        setClass("&", AMPERSAND);
+        setClass("|", BAR);
+        setClass("!", BANG);
+        setClass("^", CARET);
+        setClass("+-*/%", ARITHMETIC);
 
-    private static int charType(char c) {
-        if (containsChar(DIGITS, c)) return 0;
-        else if (containsChar(IDENTIFIER, c)) return 1;
-        else if (containsChar(ARITHMETIC, c)) return 17;
-        else {
-            int res;
-            switch (c) {
-                case '{':
-                    res = 2;
-                    break;
-                case '}':
-                    res = 3;
-                    break;
-                case '(':
-                    res = 4;
-                    break;
-                case ')':
-                    res = 5;
-                    break;
-                case ';':
-                    res = 6;
-                    break;
-                case '\n':
-                    res = 7;
-                    break;
-                case '<':
-                    res = 8;
-                    break;
-                case '>':
-                    res = 8;
-                    break;
-                case '=':
-                    res = 9;
-                    break;
-                case '&':
-                    res = 10;
-                    break;
-                case '|':
-                    res = 11;
-                    break;
-                case '.':
-                    res = 12;
-                    break;
-                case ',':
-                    res = 13;
-                    break;
-                case '!':
-                    res = 15;
-                    break;
-                case '^':
-                    res = 16;
-                    break;
-                case '@':
-                    res = 18;
-                    break;
-                case ':':
-                    res = 19;
-                    break;
-                default:
-                    res = -1;
-                    break;
-            }
-            return res;
+        for (int t : new int[]{ANGLE, EQUAL, AMPERSAND, BAR}) {
+            CONCATENATE[t][t] = true;
         }
+        for (int t : new int[]{ANGLE, AMPERSAND, BAR, BANG, CARET, ARITHMETIC}) {
+            CONCATENATE[t][EQUAL] = true;
+        }
+        CONCATENATE[EQUAL][ANGLE] = true;
     }
 
-    public boolean concatenateAble(char lastChar, char thisChar) {
-        int lastType = charType(lastChar);
-        int thisType = charType(thisChar);
-        TypeTuple tt = new TypeTuple(lastType, thisType);
-        return concatenateSet.contains(tt);
-    }
-
-    private static boolean containsChar(final String s, final char c) {
-        for (char x : s.toCharArray())
-            if (x == c) return true;
-        return false;
+    private static void setClass(final String chars, final int type) {
+        for (int i = 0; i < chars.length(); i++) {
+            CHAR_CLASS[chars.charAt(i)] = (byte) type;
+        }
     }
 
-    public static boolean isIdentifier(String s) {
-        if (s.length() == 0) return false;
-        else {
-            if (!containsChar(IDENTIFIER, s.charAt(0))) return false;
-            else {
-                for (int i = 1; i < s.length(); i++) {
-                    char ch = s.charAt(i);
-                    if (!(containsChar(IDENTIFIER, ch) || containsChar(DIGITS, ch))) return false;
-                }
-                return true;
-            }
-        }
+    public static int charClass(final char c) {
+        return c < 128 ? CHAR_CLASS[c] : INVALID;
     }
 
-    public static boolean isDigits(String s) {
-        for (char c: s.toCharArray()) {
-            if (!containsChar(DIGITS, c)) return false;
-        }
-        return s.length() > 0;  // Empty string is not digits.
+    /**
+     * Returns whether an operator character of class <code>thisType</code> continues an operator ending with
+     * a character of class <code>lastType</code>.
+     */
+    public static boolean concatenateAble(final int lastType, final int thisType) {
+        return CONCATENATE[lastType][thisType];
     }
 
-    public static boolean isFloat(String s) {
-        int dotIndex = s.indexOf('.');
-        if (dotIndex >= 0) {
-            String front = s.substring(0, dotIndex);
-            String back = s.substring(dotIndex + 1);
-            if (dotIndex == 0) {
-                front = "0";
-            }
-            return isDigits(front) && isDigits(back);
-        } else {
-            return false;
-        }
+    public static boolean isIdentifierPart(final int type) {
+        return type == LETTER || type == DIGIT;
     }
 }